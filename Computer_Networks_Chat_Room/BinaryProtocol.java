@@ -0,0 +1,211 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The binary version of the chat protocol. A binary client opens with the
+ * four HELLO bytes; a text client opens with "0 name", so the first byte
+ * is enough to tell them apart and old clients keep the text protocol.
+ *
+ * After HELLO every message in both directions is one frame:
+ *
+ *	int	length of everything after this int
+ *	byte	command number (see Frame)
+ *	4 x	unsigned short length, then that many bytes of UTF-8 for the
+ *		username, target, timestamp and body fields, in that order
+ *
+ * Unused fields are sent empty, so every frame parses the same way and a
+ * frame is always 13 bytes plus its text.
+ *
+ * A version 2 HELLO is followed by one byte of options the client would
+ * like, and the server answers it with one byte of the options it turned
+ * on before anything else. With DEFLATE on, what the server sends may
+ * also hold compressed blocks, see Compressor:
+ *
+ *	int	COMPRESSED | length of everything after this int
+ *	bytes	raw deflate data, ended by a sync flush, that inflates to
+ *		whole frames
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class BinaryProtocol {
+
+	public static final int VERSION = 2;
+
+	// 0xC4 can never start a text protocol line. This is the version 1
+	// HELLO, for a client that wants no options.
+	public static final byte[] HELLO = { (byte) 0xC4, 'C', 'H', 1 };
+
+	// options in a version 2 HELLO
+	public static final int DEFLATE = 1;
+
+	// set in the length of a compressed block, a frame is never that long
+	public static final int COMPRESSED = 0x80000000;
+
+	// largest frame accepted from a client, length prefix not included
+	public static final int MAX_FRAME = 64 * 1024;
+
+	private static final int HEADER = 4;
+	private static final int MIN_FRAME = 1 + 2 * Command.FIELDS;
+
+	private BinaryProtocol() { }
+
+	public static boolean isHello(int firstByte) {
+		return firstByte == (HELLO[0] & 0xff);
+	}
+
+	/**
+	 * a version 2 HELLO asking for options
+	 */
+	public static byte[] hello(int options) {
+		return new byte[] { HELLO[0], HELLO[1], HELLO[2], (byte) VERSION, (byte) options };
+	}
+
+	/**
+	 * the options the server turns on out of those a client asked for
+	 */
+	public static int accept(int options) {
+		return options & (Compressor.ENABLED ? DEFLATE : 0);
+	}
+
+	/**
+	 * checks the rest of HELLO once its first byte was seen, returns the
+	 * options asked for, or -1 for a version 1 HELLO that gets no answer
+	 */
+	public static int readHello(DataInputStream in) throws IOException {
+		byte[] hello = new byte[HELLO.length];
+		in.readFully(hello);
+		return (checkHello(hello) == 1) ? -1 : in.readUnsignedByte();
+	}
+
+	/**
+	 * the version, if hello starts with the HELLO bytes and is one we speak
+	 */
+	private static int checkHello(byte[] hello) throws ProtocolException {
+		for (int i = 0; i < HELLO.length - 1; i++) {
+			if (hello[i] != HELLO[i]) {
+				throw new ProtocolException("not a chat client");
+			}
+		}
+
+		int version = hello[HELLO.length - 1];
+
+		if (version < 1 || version > VERSION) {
+			throw new ProtocolException("unsupported protocol version " + version);
+		}
+
+		return version;
+	}
+
+	/**
+	 * non-blocking version of readHello, leaves in alone and returns -2
+	 * until all of HELLO is in
+	 */
+	public static int decodeHello(ByteBuffer in) throws ProtocolException {
+		if (in.remaining() < HELLO.length) {
+			return -2;
+		}
+
+		byte[] hello = new byte[HELLO.length];
+
+		for (int i = 0; i < hello.length; i++)
+			hello[i] = in.get(in.position() + i);
+
+		if (checkHello(hello) == 1) {
+			in.position(in.position() + HELLO.length);
+			return -1;
+		}
+
+		if (in.remaining() < HELLO.length + 1) {
+			return -2;
+		}
+
+		int options = in.get(in.position() + HELLO.length) & 0xff;
+		in.position(in.position() + HELLO.length + 1);
+		return options;
+	}
+
+	/**
+	 * reads one whole frame into command, false at end of stream
+	 */
+	public static boolean read(DataInputStream in, Command command) throws IOException {
+		int length;
+
+		try {
+			length = in.readInt();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+
+		checkLength(length);
+
+		byte[] data = command.buffer(length);
+		in.readFully(data, 0, length);
+		command.parse(data, 0, length);
+		return true;
+	}
+
+	/**
+	 * decodes one frame straight out of in if all of it has arrived,
+	 * otherwise leaves in alone and returns false. The command points into
+	 * in's array, so use it before in is compacted or read into again.
+	 */
+	public static boolean decode(ByteBuffer in, Command command) throws ProtocolException {
+		if (in.remaining() < HEADER) {
+			return false;
+		}
+
+		int length = in.getInt(in.position());
+		checkLength(length);
+
+		if (in.remaining() < HEADER + length) {
+			return false;
+		}
+
+		command.parse(in.array(), in.arrayOffset() + in.position() + HEADER, length);
+		in.position(in.position() + HEADER + length);
+		return true;
+	}
+
+	private static void checkLength(int length) throws ProtocolException {
+		if (length < MIN_FRAME || length > MAX_FRAME) {
+			throw new ProtocolException("bad frame length " + length);
+		}
+	}
+
+	/**
+	 * the binary encoding of a frame, built once per frame by Frame
+	 */
+	static byte[] encode(Frame frame) {
+		byte[][] fields = {
+			frame.getUsername().getBytes(StandardCharsets.UTF_8),
+			frame.getTarget().getBytes(StandardCharsets.UTF_8),
+			frame.getTimestamp().getBytes(StandardCharsets.UTF_8),
+			frame.getBody().getBytes(StandardCharsets.UTF_8)
+		};
+
+		int length = MIN_FRAME;
+
+		for (byte[] field : fields) {
+			length += Math.min(field.length, 0xffff);
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(HEADER + length);
+		out.putInt(length);
+		out.put((byte) frame.getCommand());
+
+		for (byte[] field : fields) {
+			// a field longer than an unsigned short can say is cut off
+			int fieldLength = Math.min(field.length, 0xffff);
+			out.putShort((short) fieldLength);
+			out.put(field, 0, fieldLength);
+		}
+
+		return out.array();
+	}
+}
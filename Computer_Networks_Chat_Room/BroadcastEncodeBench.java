@@ -0,0 +1,123 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Compares the old broadcast path, DataOutputStream.writeBytes once per
+ * client, against encoding one Frame and handing it to every client.
+ * Each client is an in memory stream that counts the write calls it gets,
+ * one write call on a socket stream is one send syscall. Nothing here
+ * pays for a real syscall, so only the counts are reported, not time.
+ *
+ * Usage:
+ *	java BroadcastEncodeBench [recipients] [message length] [messages]
+ */
+
+import java.io.*;
+
+public class BroadcastEncodeBench {
+
+	public static void main(String[] args) throws IOException {
+		int recipients = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		int length = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+		int messages = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length)
+			text.append("hello ");
+		String body = text.substring(0, length);
+		String message = Frame.publicMessage("alice", Handler.getDatetimeGMT(), body).toString();
+
+		System.out.println(recipients + " recipients, " + message.length() + " byte frame, " + messages + " messages");
+		System.out.println("path\tchars encoded/msg\twrite calls/msg\tbytes copied/msg");
+		print("before", before(message, recipients, messages), messages);
+		print("after", after(body, recipients, messages), messages);
+	}
+
+	/**
+	 * what BroadcastThread used to do, writeBytes straight to every socket
+	 */
+	private static long[] before(String message, int recipients, int messages) throws IOException {
+		CountingStream[] sockets = sockets(recipients);
+		DataOutputStream[] outputs = new DataOutputStream[recipients];
+
+		for (int i = 0; i < recipients; i++)
+			outputs[i] = new DataOutputStream(sockets[i]);
+
+		for (int m = 0; m < messages; m++) {
+			for (int i = 0; i < recipients; i++) {
+				outputs[i].writeBytes(message);
+			}
+		}
+
+		// writeBytes walks the string once per client
+		return totals(sockets, (long) message.length() * recipients * messages, 0);
+	}
+
+	/**
+	 * encode once, then every client's writer copies the shared bytes into
+	 * its buffer and flushes it with a single write
+	 */
+	private static long[] after(String body, int recipients, int messages) throws IOException {
+		CountingStream[] sockets = sockets(recipients);
+		BufferedOutputStream[] outputs = new BufferedOutputStream[recipients];
+
+		for (int i = 0; i < recipients; i++)
+			outputs[i] = new BufferedOutputStream(sockets[i]);
+
+		long encoded = 0;
+		long copied = 0;
+
+		for (int m = 0; m < messages; m++) {
+			Frame frame = Frame.publicMessage("alice", Handler.getDatetimeGMT(), body);
+			encoded += frame.length(WireFormat.TEXT);
+			copied += (long) frame.length(WireFormat.TEXT) * recipients;
+
+			for (int i = 0; i < recipients; i++) {
+				frame.writeTo(outputs[i], WireFormat.TEXT);
+				outputs[i].flush();
+			}
+		}
+
+		return totals(sockets, encoded, copied);
+	}
+
+	private static CountingStream[] sockets(int recipients) {
+		CountingStream[] sockets = new CountingStream[recipients];
+
+		for (int i = 0; i < recipients; i++)
+			sockets[i] = new CountingStream();
+
+		return sockets;
+	}
+
+	private static long[] totals(CountingStream[] sockets, long encoded, long copied) {
+		long writes = 0;
+
+		for (CountingStream socket : sockets)
+			writes += socket.writes;
+
+		return new long[] { encoded, writes, copied };
+	}
+
+	private static void print(String path, long[] totals, int messages) {
+		System.out.println(path + "\t" + totals[0] / messages + "\t\t\t" + totals[1] / messages + "\t\t\t"
+				+ totals[2] / messages);
+	}
+
+	/**
+	 * stands in for a socket, throws the bytes away and counts write calls
+	 */
+	private static class CountingStream extends OutputStream {
+
+		long writes = 0;
+
+		public void write(int b) {
+			writes++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			writes++;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The queue a BroadcastThread sleeps on. Any number of threads can add at
+ * once without taking a lock, and the one thread that drains it sleeps
+ * until there is something to do instead of polling.
+ */
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class BroadcastQueue<E> {
+
+	private final ConcurrentLinkedQueue<E> messages = new ConcurrentLinkedQueue<E>();
+	private volatile Thread consumer = null;
+	private volatile boolean waiting = false;
+
+	/**
+	 * queue a message and wake the broadcaster if it is asleep
+	 */
+	public boolean add(E message) {
+		messages.offer(message);
+
+		// only pay for unpark when the consumer actually went to sleep
+		if (waiting) {
+			LockSupport.unpark(consumer);
+		}
+
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * blocks the calling thread until at least one message is queued
+	 */
+	public void await() {
+		consumer = Thread.currentThread();
+
+		while (messages.isEmpty()) {
+			waiting = true;
+
+			// check again, a producer may have added before it saw waiting
+			if (messages.isEmpty()) {
+				LockSupport.park(this);
+			}
+
+			waiting = false;
+		}
+	}
+
+	/**
+	 * moves up to max queued messages into batch, returns how many moved
+	 */
+	public int drainTo(List<E> batch, int max) {
+		int count = 0;
+		E message;
+
+		while (count < max && (message = messages.poll()) != null) {
+			batch.add(message);
+			count++;
+		}
+
+		return count;
+	}
+}
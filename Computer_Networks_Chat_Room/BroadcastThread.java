@@ -3,47 +3,49 @@
  * CMPT 352
  * April 2016
  *
+ * A dispatcher. Rooms are spread over a few of these by name, each room
+ * with messages waiting queues itself here once and this thread sends
+ * them to the room's members.
  */
 
-import java.io.*;
-import java.net.*;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 public class BroadcastThread implements Runnable {
 
+        // most rooms, and most messages per room, sent in one pass before checking the queue again
+        static final int BATCH_SIZE = 256;
+
+        private final BroadcastQueue<Room> ready = new BroadcastQueue<Room>();
+
+        /**
+         * a room has messages waiting
+         */
+        void schedule(Room room) {
+            ready.add(room);
+        }
+
         public void run() {
-            Enumeration<String> threadEnum;
-            DataOutputStream toClients = null;
-
-            while (true) {	
-                // sleep for 1/10th of a second
-                try {
-                    Thread.sleep(100);
-                }
-
-                catch (InterruptedException ignore) { }
-                /**
-                 * check if there are any messages in the Vector. If so, remove them
-                 * and broadcast the messages to the chatroom
-                 */
-                try {
-                    while(!Server2.broadcastThread.isEmpty()) {
-                        String message = Server2.broadcastThread.remove(0);
-                        
-                        for(DataOutputStream output:Server2.userList.values()) {
-                            output.writeBytes(message);
-
-                            System.out.println("<" + message + " was sent>");
-
-                        }
-                    }
-                }
-
-                catch(IOException e) {
-                    // remove socket that caused IOException from list
-//                    Server.userList.remove(Server.userList.get());		// how to get the socket?
-                }
+            ArrayList<Room> rooms = new ArrayList<Room>(BATCH_SIZE);
+            ArrayList<Frame> batch = new ArrayList<Frame>(BATCH_SIZE);
+
+            while (true) {
+                // sleep until a Handler queues a message
+                ready.await();
+                deliverReady(rooms, batch);
+            }
+        }
+
+        /**
+         * take every room that has something queued right now and
+         * broadcast its messages to the room, rooms and batch are scratch
+         * lists the caller keeps so a pass allocates nothing
+         */
+        void deliverReady(ArrayList<Room> rooms, ArrayList<Frame> batch) {
+            rooms.clear();
+            ready.drainTo(rooms, BATCH_SIZE);
+
+            for (Room room : rooms) {
+                room.deliver(batch);
             }
         }
 }
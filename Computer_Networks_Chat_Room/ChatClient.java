@@ -0,0 +1,239 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The client side of the protocol without any user interface. A
+ * ChatClient owns a few event loops and every ChatConnection made from it
+ * is serviced by one of them without blocking, so one JVM can hold
+ * hundreds of sessions on a couple of threads. ChatScreen is built on it,
+ * and so can a bot or a bridge be:
+ *
+ *	ChatClient client = new ChatClient(2);
+ *	ChatConnection bot = client.connect("localhost", 1337, "bot", WireFormat.TEXT, listener);
+ *	if (bot.handshake().get().getCommand() == Frame.ACCEPTED)
+ *		bot.sendPublic("hello");
+ *
+ * A connection that was lost can be made again with reconnect, which
+ * only has the server send the joins and leaves it missed.
+ *
+ * The loop threads are daemons, close() stops them and drops every
+ * connection still open.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChatClient implements Closeable {
+
+	// most buffers handed to one gathering write
+	static final int MAX_GATHER = 64;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	public ChatClient(int loopCount) throws IOException {
+		loops = new EventLoop[Math.max(1, loopCount)];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "chat-client-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * starts connecting and returns at once. The handshake, HELLO for
+	 * binary and then the username, is queued ahead of anything sent on
+	 * the connection, handshake() says how it went.
+	 */
+	public ChatConnection connect(String host, int port, String name, WireFormat format, ChatListener listener) throws IOException {
+		return connect(host, port, name, format, false, listener);
+	}
+
+	/**
+	 * the same, and with compress a binary connection asks the server to
+	 * deflate what it sends, see Compressor
+	 */
+	public ChatConnection connect(String host, int port, String name, WireFormat format, boolean compress, ChatListener listener) throws IOException {
+		return connect(host, port, name, format, compress, listener, null);
+	}
+
+	/**
+	 * connects again as previous did, to the same server with the same
+	 * name and listener, starting from the user list previous had
+	 */
+	public ChatConnection reconnect(ChatConnection previous) throws IOException {
+		return connect(previous.getHost(), previous.getPort(), previous.getName(), previous.getFormat(),
+				previous.asksCompression(), previous.getListener(), previous);
+	}
+
+	private ChatConnection connect(String host, int port, String name, WireFormat format, boolean compress, ChatListener listener,
+			ChatConnection previous) throws IOException {
+		if (compress && format != WireFormat.BINARY) {
+			throw new IllegalArgumentException("only the binary protocol can be compressed");
+		}
+
+		SocketChannel channel = SocketChannel.open();
+
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(host, port));
+		}
+
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		// spread the connections round robin over the event loops
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		ChatConnection connection = new ChatConnection(channel, loop, host, port, name, format, compress, listener, previous);
+		loop.register(connection);
+		return connection;
+	}
+
+	/**
+	 * stops the event loops, every open connection is closed without a 7
+	 */
+	public void close() {
+		for (EventLoop loop : loops)
+			loop.stop();
+	}
+
+	/**
+	 * One selector and the thread that runs it. Other threads never touch
+	 * the selector directly, they queue work and wake it up instead.
+	 */
+	static final class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<ChatConnection> newConnections = new ConcurrentLinkedQueue<ChatConnection>();
+		private final Queue<ChatConnection> pendingWrites = new ConcurrentLinkedQueue<ChatConnection>();
+		private final Queue<ChatConnection> closes = new ConcurrentLinkedQueue<ChatConnection>();
+		final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		private volatile boolean running = true;
+		// set once the loop has let go of its selector, closes are run by whoever asks then
+		private volatile boolean stopped = false;
+		private volatile Thread thread = null;
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(ChatConnection connection) {
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+
+		void scheduleWrite(ChatConnection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * has the loop finish closing a connection, or the caller once the
+		 * loop has stopped
+		 */
+		void scheduleClose(ChatConnection connection) {
+			closes.add(connection);
+			selector.wakeup();
+
+			if (stopped) {
+				runCloses();
+			}
+		}
+
+		boolean inLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		private void runCloses() {
+			ChatConnection connection;
+
+			while ((connection = closes.poll()) != null) {
+				connection.closeChannel();
+			}
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+
+			while (running) {
+				try {
+					selector.select();
+
+					ChatConnection connection;
+
+					while ((connection = newConnections.poll()) != null) {
+						connection.register(selector);
+					}
+
+					while ((connection = pendingWrites.poll()) != null) {
+						connection.flush();
+					}
+
+					runCloses();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (ChatConnection) key.attachment();
+
+						if (key.isValid() && key.isConnectable()) {
+							connection.finishConnect();
+						}
+
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					}
+				}
+
+				catch (IOException e) {
+					System.err.println("<chat client event loop: " + e + ">");
+				}
+			}
+
+			ChatConnection connection;
+
+			while ((connection = newConnections.poll()) != null) {
+				connection.close();
+			}
+
+			// closing cancels keys, so go over a copy
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				((ChatConnection) key.attachment()).close();
+			}
+
+			try {
+				selector.close();
+			}
+
+			catch (IOException ignore) { }
+
+			stopped = true;
+			runCloses();
+		}
+	}
+}
@@ -0,0 +1,563 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * One session with the server, made by ChatClient.connect. The send
+ * methods may be called from any thread, they queue the frame and the
+ * event loop that owns the connection writes it. Reading and parsing run
+ * on that event loop, and every frame that comes in goes to the
+ * ChatListener, except the server's 19, which is answered with 20 right
+ * there.
+ *
+ * The connection keeps who is online from the server's 21 snapshot and
+ * the 10s and 9s after it. A change that is older than what it has is
+ * dropped and not passed on, and one that skips a version (the server
+ * dropped some of what it queued for this client) has it ask with 22 for
+ * what it missed. ChatClient.reconnect starts from an old connection's
+ * list and version, so the server only sends what changed since.
+ *
+ * close may be called from any thread as well. It stops new sends at once
+ * and leaves closing the channel and telling the listener to the event
+ * loop, so the listener only ever hears from that one thread.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChatConnection {
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final Frame PONG = Frame.pong();
+	// the biggest line, frame or compressed block the server is allowed to
+	// send, a block of one frame's worth can come out a little bigger
+	private static final int MAX_READ_BUFFER = BinaryProtocol.MAX_FRAME + 1024;
+
+	private final SocketChannel channel;
+	private final ChatClient.EventLoop loop;
+	private final String host;
+	private final int port;
+	private final String name;
+	private final WireFormat format;
+	private final boolean compress;
+	private final ChatListener listener;
+
+	private final CompletableFuture<Frame> handshake = new CompletableFuture<Frame>();
+	private final CompletableFuture<Void> closeFuture = new CompletableFuture<Void>();
+	// who is online, changed on the event loop and read from anywhere
+	private final LinkedHashSet<String> users = new LinkedHashSet<String>();
+	private volatile long presenceVersion = -1;
+
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	// set before the close is handed to the event loop, read there
+	private IOException closeCause = null;
+
+	// only the event loop touches these
+	private SelectionKey key;
+	private boolean connected = false;
+	private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final Command command = new Command();
+	// false until the server answers a HELLO that asked for compression
+	private boolean optionsRead;
+	private Decompressor decompressor = null;
+	// the version a 22 was last sent from, so a gap is only asked about once
+	private long syncAsked = -1;
+
+	/**
+	 * previous is the connection this one takes over from, or null
+	 */
+	ChatConnection(SocketChannel channel, ChatClient.EventLoop loop, String host, int port, String name, WireFormat format,
+			boolean compress, ChatListener listener, ChatConnection previous) {
+		this.channel = channel;
+		this.loop = loop;
+		this.host = host;
+		this.port = port;
+		this.name = name;
+		this.format = format;
+		this.compress = compress;
+		this.listener = listener;
+
+		if (previous != null) {
+			synchronized (previous.users) {
+				users.addAll(previous.users);
+				presenceVersion = previous.presenceVersion;
+			}
+		}
+
+		// HELLO tells the server this client speaks the binary protocol
+		if (format == WireFormat.BINARY) {
+			byte[] hello = compress ? BinaryProtocol.hello(BinaryProtocol.DEFLATE) : BinaryProtocol.HELLO;
+			outbound.add(ByteBuffer.wrap(hello).asReadOnlyBuffer());
+		}
+
+		optionsRead = !compress;
+
+		// 0 when nothing was seen yet, any version asks for 21 and versioned 9 and 10
+		outbound.add(Frame.join(name, Math.max(0, presenceVersion)).buffer(format));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public WireFormat getFormat() {
+		return format;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * whether this connection asked the server to compress, see isCompressed
+	 * for whether it did
+	 */
+	public boolean asksCompression() {
+		return compress;
+	}
+
+	public ChatListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * completes with the server's answer to the username, ACCEPTED or
+	 * NAME_TAKEN, or exceptionally if the connection closed first. Actions
+	 * chained on it run on the event loop unless given an executor.
+	 */
+	public CompletableFuture<Frame> handshake() {
+		return handshake;
+	}
+
+	/**
+	 * who is online as of the last change this connection has seen, a copy
+	 */
+	public List<String> getUsers() {
+		synchronized (users) {
+			return Collections.unmodifiableList(new ArrayList<String>(users));
+		}
+	}
+
+	/**
+	 * the version of getUsers, -1 until the server has sent one
+	 */
+	public long getPresenceVersion() {
+		return presenceVersion;
+	}
+
+	/**
+	 * completes once the connection is closed, for whatever reason
+	 */
+	public CompletableFuture<Void> closeFuture() {
+		return closeFuture;
+	}
+
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	/**
+	 * whether the server agreed to compress what it sends, known once the
+	 * handshake is done
+	 */
+	public boolean isCompressed() {
+		return decompressor != null;
+	}
+
+	/**
+	 * queues frame for the server, false if the connection is already closed
+	 */
+	public boolean send(Frame frame) {
+		if (closed.get()) {
+			return false;
+		}
+
+		// the frame's own bytes, a view per connection so nothing is copied
+		outbound.add(frame.buffer(format));
+
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.scheduleWrite(this);
+		}
+
+		return true;
+	}
+
+	public boolean sendPublic(String message) {
+		return send(Frame.publicRequest(message));
+	}
+
+	public boolean sendPrivate(String toUsername, String message) {
+		return send(Frame.privateRequest(name, toUsername, message));
+	}
+
+	public boolean joinRoom(String room) {
+		return send(Frame.joinRoom(room));
+	}
+
+	public boolean leaveRoom() {
+		return send(Frame.leaveRoom());
+	}
+
+	public boolean listRooms() {
+		return send(Frame.listRooms());
+	}
+
+	/**
+	 * says goodbye, the server answers 8 after anything still queued for
+	 * this client and hangs up. The returned future completes then.
+	 */
+	public CompletableFuture<Void> disconnect() {
+		send(Frame.disconnect());
+		return closeFuture;
+	}
+
+	/**
+	 * drops the connection at once without telling the server
+	 */
+	public void close() {
+		close(null);
+	}
+
+	private void close(IOException cause) {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+
+		closeCause = cause;
+
+		if (loop.inLoop()) {
+			closeChannel();
+		}
+
+		else {
+			loop.scheduleClose(this);
+		}
+	}
+
+	/**
+	 * on the event loop, the second half of close
+	 */
+	void closeChannel() {
+		try {
+			channel.close();
+		}
+
+		catch (IOException ignore) { }
+
+		if (decompressor != null) {
+			decompressor.end();
+			decompressor = null;
+		}
+
+		handshake.completeExceptionally((closeCause != null) ? closeCause : new ClosedChannelException());
+		listener.closed(this, closeCause);
+		closeFuture.complete(null);
+	}
+
+	/**
+	 * on the event loop, the channel may have connected already
+	 */
+	void register(Selector selector) {
+		try {
+			if (channel.isConnectionPending()) {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+
+			else {
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+				connected = true;
+				flush();
+			}
+		}
+
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	void finishConnect() {
+		try {
+			channel.finishConnect();
+			connected = true;
+			key.interestOps(SelectionKey.OP_READ);
+			flush();
+		}
+
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * write as much as the socket takes, wait for OP_WRITE for the rest.
+	 * Everything queued goes to the socket in one gathering write.
+	 */
+	void flush() {
+		writeScheduled.set(false);
+
+		// finishConnect flushes whatever was queued while connecting
+		if (!connected || closed.get()) {
+			return;
+		}
+
+		ByteBuffer[] gather = loop.gather;
+
+		try {
+			while (true) {
+				ByteBuffer next;
+
+				while (writing.size() < gather.length && (next = outbound.poll()) != null) {
+					writing.add(next);
+				}
+
+				if (writing.isEmpty()) {
+					break;
+				}
+
+				int count = writing.size();
+				writing.toArray(gather);
+				channel.write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+
+				while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+					writing.poll();
+				}
+
+				if (!writing.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	void read() {
+		try {
+			int count = channel.read(readBuffer);
+
+			if (count < 0) {
+				close(null);
+				return;
+			}
+
+			readBuffer.flip();
+
+			if (format == WireFormat.BINARY) {
+				readFrames();
+			}
+
+			else {
+				readLines();
+			}
+
+			if (closed.get()) {
+				return;
+			}
+
+			readBuffer.compact();
+
+			// the line or frame that is coming is bigger than the buffer
+			if (!readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= MAX_READ_BUFFER) {
+					throw new ProtocolException("server sent more than " + MAX_READ_BUFFER + " bytes in one message");
+				}
+
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER));
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		}
+
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * every whole line in the buffer, a partial line stays for the next read
+	 */
+	private void readLines() throws ProtocolException {
+		byte[] bytes = readBuffer.array();
+		int start = readBuffer.position();
+
+		for (int i = start; i < readBuffer.limit() && !closed.get(); i++) {
+			if (bytes[i] != '\n') {
+				continue;
+			}
+
+			int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+
+			if (end > start) {
+				deliver(Frame.parse(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1)));
+			}
+
+			start = i + 1;
+			readBuffer.position(start);
+		}
+	}
+
+	/**
+	 * every whole frame in the buffer, a partial frame stays for the next read
+	 */
+	private void readFrames() throws ProtocolException {
+		if (!optionsRead) {
+			if (!readBuffer.hasRemaining()) {
+				return;
+			}
+
+			optionsRead = true;
+
+			if ((readBuffer.get() & BinaryProtocol.DEFLATE) != 0)
+				decompressor = new Decompressor();
+		}
+
+		while (!closed.get() && readBuffer.remaining() >= 4) {
+			int length = readBuffer.getInt(readBuffer.position());
+
+			if ((length & BinaryProtocol.COMPRESSED) == 0) {
+				if (!BinaryProtocol.decode(readBuffer, command)) {
+					return;
+				}
+
+				deliver(Frame.from(command));
+				continue;
+			}
+
+			length &= ~BinaryProtocol.COMPRESSED;
+
+			if (decompressor == null || length > MAX_READ_BUFFER - 4) {
+				throw new ProtocolException("unexpected compressed block of " + length + " bytes");
+			}
+
+			if (readBuffer.remaining() < 4 + length) {
+				return;
+			}
+
+			ByteBuffer frames = decompressor.inflate(readBuffer.array(), readBuffer.position() + 4, length);
+			readBuffer.position(readBuffer.position() + 4 + length);
+
+			while (!closed.get() && BinaryProtocol.decode(frames, command)) {
+				deliver(Frame.from(command));
+			}
+
+			if (!closed.get() && frames.hasRemaining()) {
+				throw new ProtocolException("compressed block ends inside a frame");
+			}
+		}
+	}
+
+	private void deliver(Frame frame) {
+		// the server checking the client is still there, answered here and not passed on
+		if (frame.getCommand() == Frame.PING) {
+			send(PONG);
+			return;
+		}
+
+		switch (frame.getCommand()) {
+			case Frame.ACCEPTED:
+			case Frame.NAME_TAKEN:
+				handshake.complete(frame);
+				break;
+
+			case Frame.PRESENCE:
+				presence(frame);
+				break;
+
+			case Frame.JOINED:
+			case Frame.LEFT:
+				if (!change(frame))
+					return;
+				break;
+		}
+
+		// a listener that throws loses its own connection, not the event loop
+		try {
+			listener.received(this, frame);
+		}
+
+		catch (RuntimeException e) {
+			close(new IOException("listener failed", e));
+		}
+	}
+
+	/**
+	 * a 21, everyone online as of its version
+	 */
+	private void presence(Frame frame) {
+		synchronized (users) {
+			users.clear();
+
+			// the user list is comma separated
+			for (String username : frame.getBody().split(",")) {
+				if (!username.isEmpty())
+					users.add(username);
+			}
+
+			presenceVersion = Presence.parseVersion(frame.getTarget());
+		}
+	}
+
+	/**
+	 * applies a 10 or 9, false if it is one this connection already has
+	 * or can't apply yet
+	 */
+	private boolean change(Frame frame) {
+		long version = Presence.parseVersion(frame.getTarget());
+		long current = presenceVersion;
+
+		// a server that doesn't number them, or nothing to number from yet
+		if (version >= 0 && current >= 0) {
+			if (version <= current) {
+				return false;
+			}
+
+			if (version > current + 1) {
+				if (syncAsked != current) {
+					syncAsked = current;
+					send(Frame.sync(current));
+				}
+
+				return false;
+			}
+		}
+
+		synchronized (users) {
+			if (frame.getCommand() == Frame.JOINED)
+				users.add(frame.getUsername());
+			else
+				users.remove(frame.getUsername());
+
+			if (version >= 0)
+				presenceVersion = version;
+		}
+
+		return true;
+	}
+}
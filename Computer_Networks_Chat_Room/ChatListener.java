@@ -0,0 +1,25 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What a ChatConnection tells its owner. Both methods are called on the
+ * ChatClient event loop that owns the connection, so they must not
+ * block, anything slow should be handed to another thread.
+ */
+
+import java.io.IOException;
+
+public interface ChatListener {
+
+	/**
+	 * every frame the server sends, in order, the handshake reply included
+	 */
+	void received(ChatConnection connection, Frame frame);
+
+	/**
+	 * the connection is gone, cause is null if the server hung up normally
+	 * or close() was called
+	 */
+	void closed(ChatConnection connection, IOException cause);
+}
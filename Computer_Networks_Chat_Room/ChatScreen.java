@@ -4,20 +4,27 @@
  * enables us to position containers using the coordinates South and Center.
  *
  * Usage:
- *	java ChatScreen
+ *	java ChatScreen <server> [binary | deflate]
  *
- * When the user enters text in the textfield, it is displayed backwards
- * in the display area.
+ * binary talks to the server with the binary protocol instead of text,
+ * deflate also asks the server to compress what it sends.
+ *
+ * Everyone starts in the lobby. "/join room" moves to another room,
+ * "/leave" goes back to the lobby and "/rooms" lists the rooms.
+ *
+ * The talking to the server is done by ChatClient, this class is only
+ * the window on top of it. Messages are shown through a Transcript, see
+ * there for -Dchat.screen.lines, fps and spill.
  */
 
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.border.*;
-import java.net.*;
 import java.io.*;
 import java.util.Scanner;
-import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 	private JButton sendButton;
@@ -25,11 +32,12 @@ public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 	public JTextField sendText;
 	public JTextArea displayArea;
 	private static final int PORT = 1337;
-	public static BufferedReader serverReader = null;
-	public static DataOutputStream toServer = null;
+	private static WireFormat format = WireFormat.TEXT;
+	private static boolean compress = false;
 	private static String userName;
-	private static ArrayList<String> usernameList = new ArrayList<String>();
-	public static Socket server = null;
+	private static ChatConnection connection = null;
+	// filled from the start, shown once the window is up
+	private static final Transcript transcript = Transcript.fromProperties();
 
 
 	public ChatScreen() {
@@ -89,9 +97,7 @@ public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 		setVisible(true);
 		sendText.requestFocus();
 
-		(new Thread(new ReaderThread())).start();
-		
-		displayArea.append(usernameList.toString());
+		transcript.attach(displayArea);
 
 		/** anonymous inner class to handle window closing events */
 		addWindowListener(new WindowAdapter() {
@@ -103,134 +109,112 @@ public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 	}
 
 	/**
-	 * Private class that represents the thread that reads messages from the
-	 * server and displays the text to the screen
+	 * Turns what the server sends into lines of the transcript. It runs on
+	 * the client's event loop, the window is only touched by the
+	 * transcript's timer on the event thread.
 	 */
-	private class ReaderThread implements Runnable {
+	private static class Display implements ChatListener {
 
-		public void run() {
-			try {
-				String message;
-
-				while (true) { // protocol 5
-					// read from the socket
-					message = serverReader.readLine();
-					String command = message.substring(0, 1);
-
-					System.out.println("<Line 116 " + message + ">\r\n");
-					System.out.println("<Line 117 " + command + ">\r\n");
-
-					if (command.equals("1")) { // userlist here?
-						System.out.println("<Username accepted>\r\n");
-					}
-
-					// private message
-					else if (command.equals("6")) {
-						// gets the string without the command number
-						String withoutCommand = message.substring(message.indexOf(" ") + 1);
-
-						// gets who the message is from
-//						String fromUsername = message.substring(message.indexOf(" "),(message.indexOf(" ",message.indexOf(" ") + 1)));
-						String fromUsername = withoutCommand.substring(0, withoutCommand.indexOf(" "));
-						
-						System.out.println("<ChatScreen Line 132 fromUsername:" + fromUsername + ">");
-
-						// gets who the message is to (me)
-						String toUsername = withoutCommand.substring((withoutCommand.indexOf(" ") + 1),withoutCommand.indexOf(" ",(withoutCommand.indexOf(" ") + 1)));
-						
-						System.out.println("<ChatScreen Line 137 toUsername:" + toUsername + ">");
-
-						// holder to get the timestamp and message
-						String holder = withoutCommand.substring(withoutCommand.indexOf(" ", (withoutCommand.indexOf(" ") + 1)));
-						
-						System.out.println("<ChatScreen Line 142 holder:" + holder + ">");
-						
-						holder.trim();
-						String finalMessage = holder.substring(holder.indexOf(" ", (holder.indexOf(" ") + 1)));
-						
-						System.out.println("<ChatScreen Line 146 message:" + finalMessage + ">");
-
-						displayArea.append("Private message from " + fromUsername + ": " + finalMessage + "\n");
-						sendText.setText("");
-					} 
-					
-					else if (command.equals("10")) {
-						String connectedPerson = message.substring(message.indexOf(" ") + 1);
-						displayArea.append(connectedPerson + " connected\n");
-						sendText.setText("");
-						sendText.requestFocus();
-					}
-					// handles the user list
-					
-					// else if(command.equals("1")) {
-					// String users = message.substring(message.indexOf(" "),
-					// message.indexOf(" ", (message.indexOf(" ") + 1)));
-					// String finalMessage =
-					// message.substring(message.indexOf(" ",
-					// (message.indexOf(" ") + 1)));
-
-					// displayArea.append(users + "\n");
-					// displayArea.append(finalMessage + "\n");
-					// sendText.setText("");
-					// sendText.requestFocus();
-					// }
-
-					// general message
-					else if (command.equals("5")) {
-						String withoutCommand = message.substring(message.indexOf(" ") + 1);
-
-						System.out.println("<ReaderThread in ChatScreen Line 168:"+ withoutCommand + ">");
-
-						String fromUser = withoutCommand.substring(0,withoutCommand.indexOf(" "));
-
-						System.out.println("<ReaderThread in ChatScreen Line 172:"+ fromUser + ">");
-
-						String finalMessage = withoutCommand.substring(withoutCommand.indexOf(" ",(withoutCommand.indexOf(" ") + 1))); 
-																				
-						displayArea.append(fromUser + ": " + finalMessage+ "\n");
-					}
-				}
-			} catch (java.io.IOException ioe) {
-			}
+		public void received(ChatConnection connection, Frame frame) {
+			String line = describe(connection, frame);
+
+			if (line != null)
+				transcript.add(line);
+		}
+
+		public void closed(ChatConnection connection, IOException cause) {
+			if (cause != null)
+				System.err.println(cause);
 		}
 	}
 
 	/**
-	 * This gets the text the user entered and outputs it in the display area.
+	 * the line shown for one message from the server, null for nothing
 	 */
-	public void displayText() {
-		try {
-			String message = sendText.getText();
-			
-			System.out.println("<ChatScreen Line 198:" + message + ">");
-
-			if (message.startsWith("whisper")) { // whisper 'username' message
-				String toUsername = message.substring(message.indexOf(" "),message.indexOf(" ", (message.indexOf(" ") + 1)));
-				String finalMessage = message.substring(message.indexOf(" ",(message.indexOf(" ") + 1))).trim();
-				
-				System.out.println("<ChatScreen Line 204 Private Message:4 " + userName + " " + toUsername + " " + finalMessage + ">");
-				
-				toServer.writeBytes("4" + " " + userName.trim() + " " + toUsername.trim() + " " + finalMessage + "\r\n");
-				
-				sendText.setText("");
-			} 
-			
-			else {
-				toServer.writeBytes("3" + message + "\r\n");
+	private static String describe(ChatConnection connection, Frame message) {
+		switch (message.getCommand()) {
+			case Frame.ACCEPTED:
+				return message.getBody();
 
-				System.out.println("<DisplayText in ChatScreen Protocol 3:" + message + ">");
+			// who was here first
+			case Frame.PRESENCE:
+				return "Online: " + connection.getUsers();
 
-				sendText.setText("");
-			}
+			case Frame.PRIVATE_MESSAGE:
+				return "Private message from " + message.getUsername() + ": " + message.getBody();
+
+			case Frame.JOINED:
+				return message.getUsername() + " connected";
+
+			case Frame.LEFT:
+				return message.getUsername() + " disconnected";
 
-			// check here if the text the user enters is a private message or a
 			// general message
-			// establish what we want to do for private chat
+			case Frame.PUBLIC_MESSAGE:
+				return message.getUsername() + ": " + message.getBody();
+
+			case Frame.ROOM_JOINED:
+				return "You are in " + message.getTarget() + " with " + message.getBody();
+
+			case Frame.ROOM_LIST:
+				return "Rooms: " + message.getBody();
+
+			case Frame.ENTERED_ROOM:
+				return message.getUsername() + " entered " + message.getTarget();
+
+			case Frame.LEFT_ROOM:
+				return message.getUsername() + " left " + message.getTarget();
+
+			case Frame.RECEIPT:
+				if (message.getBody().equals(Mailboxes.STORED))
+					return message.getTarget() + " is offline and gets it on joining";
+				if (message.getBody().equals(Mailboxes.FULL))
+					return "Not sent, " + message.getTarget() + "'s mailbox is full";
+				if (message.getBody().equals(Mailboxes.UNKNOWN))
+					return "Not sent, nobody called " + message.getTarget() + " has been here";
+				return null;
+
+			case Frame.REJECTED:
+				if (message.getBody().equals("flood"))
+					return "Not sent, slow down (" + message.getBody() + ")";
+				return "Not sent (" + message.getBody() + ")";
+
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * This gets the text the user entered and outputs it in the display area.
+	 */
+	public void displayText() {
+		String message = sendText.getText();
 
+		if (message.startsWith("whisper ")) { // whisper 'username' message
+			String[] whisper = message.split(" ", 3);
+			String toUsername = whisper[1];
+			String finalMessage = (whisper.length > 2) ? whisper[2].trim() : "";
+
+			connection.sendPrivate(toUsername.trim(), finalMessage);
 		} 
+
+		else if (message.startsWith("/join ")) {
+			connection.joinRoom(message.substring(6).trim());
+		}
+
+		else if (message.trim().equals("/leave")) {
+			connection.leaveRoom();
+		}
+
+		else if (message.trim().equals("/rooms")) {
+			connection.listRooms();
+		}
 		
-		catch (java.io.IOException e) {
+		else {
+			connection.sendPublic(message);
 		}
+
+		sendText.setText("");
 	}
 
 	/**
@@ -243,15 +227,12 @@ public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 		if (source == sendButton)
 			displayText();
 		else if (source == exitButton) {		// implement java.net.SocketException
+			// give the server a moment to say goodbye before the window goes
 			try {
-				toServer.writeBytes("7\r\n");
-				
-				server.close();
-				serverReader.close();
-				toServer.close();
-			} 
-			
-			catch (java.io.IOException e) {
+				connection.disconnect().get(1, TimeUnit.SECONDS);
+			}
+
+			catch (Exception e) {
 			}
 			System.exit(0);
 		}
@@ -280,55 +261,53 @@ public class ChatScreen extends JFrame implements ActionListener, KeyListener {
 
 	public static boolean chat(String serverAddress) {
 		try {
-			server = new Socket(InetAddress.getByName(serverAddress), PORT);
-			toServer = new DataOutputStream(server.getOutputStream());
 			Scanner sc = new Scanner(System.in);
-			userName = sc.nextLine();
+			userName = sc.nextLine().trim();
 
-			System.out.println("<" + userName + ">");
+			ChatClient client = new ChatClient(1);
+			connection = client.connect(serverAddress, PORT, userName, format, compress, new Display());
 
-			toServer.writeBytes("0" + " " + userName + "\r\n");
+			Frame message = connection.handshake().get();
 
-			serverReader = new BufferedReader(new InputStreamReader(server.getInputStream()));
-			String message = serverReader.readLine();
-			String commandNumber = message.substring(0, 1);
-
-			if (commandNumber.equals("2")) {
+			if (message.getCommand() == Frame.NAME_TAKEN) {
 				System.out.println("Username already taken. Disconnected from client.");
 				return false;
 			} 
-			
-			else if (commandNumber.equals("1")) {
-				// handle what to do with username list here
-				// loop to find commas and seperate names
-				// String.split()?
-				// String.replaceAll()?
-				String usernames = message.substring(message.indexOf(" "), message.indexOf(" ", (message.indexOf(" ") + 1)));
-				usernames.concat(",");
-				String username;
-				
-				for(int i = 0; i < usernames.length(); i = (usernames.indexOf(",")) + 1) {
-					username = usernames.substring(usernames.indexOf(i), usernames.indexOf(","));
-					usernameList.add(username);				
-				}
-				return true;
-			}
+
+			return true;
 		}
 		
-		catch (java.io.IOException e) {
+		catch (IOException e) {
 			System.err.println(e);
 		}
 
+		catch (ExecutionException e) {
+			System.err.println(e.getCause());
+		}
+
+		catch (InterruptedException e) {
+		}
+
 		return false;
 	}
 
 	public static void main(String[] args) { 
 												
+		if (args.length > 1 && (args[1].equals("binary") || args[1].equals("deflate")))
+			format = WireFormat.BINARY;
+
+		compress = args.length > 1 && args[1].equals("deflate");
+
 		boolean canContinue = chat(args[0]); 
 												
 		// what to do when a user leaves?
 		if (canContinue) {
-			JFrame win = new ChatScreen();
+			// Swing is only touched on its own thread
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					new ChatScreen();
+				}
+			});
 		}
 	}
 }
@@ -1,20 +1,29 @@
 import java.io.*;
 import java.net.*;
-import java.util.Iterator;
 
 public class ChatThread implements Runnable {
 
 	public Socket socket = null;
 	public DataOutputStream clientOutputStream = null;
-	public BufferedReader clientReader = null;
+	public BufferedInputStream clientInput = null;
+	public CommandDecoder decoder = null;
+	public DataInputStream binaryReader = null;
+	public WireFormat format = WireFormat.TEXT;
+	// the options answered to a version 2 HELLO, -1 if there was none
+	private int options = -1;
+	// the presence version the client saw before, -1 if it didn't say
+	private long presenceSeen = -1;
 	public String clientName;
+	public ClientSession session = null;
 	public Thread thread;
 
 	public ChatThread(Socket sock) {
 		try {
 			this.socket = sock;
 			this.clientOutputStream = new DataOutputStream(sock.getOutputStream());
-			this.clientReader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			this.clientInput = new BufferedInputStream(sock.getInputStream());
+			this.decoder = new CommandDecoder(clientInput);
+			this.binaryReader = new DataInputStream(clientInput);
 		}
 
 		catch (java.io.IOException e) {
@@ -29,52 +38,164 @@ public class ChatThread implements Runnable {
 		return clientOutputStream;
 	}
 
-	public BufferedReader getBufferedReader() {
-		return clientReader;
+	public CommandDecoder getDecoder() {
+		return decoder;
+	}
+
+	public DataInputStream getBinaryReader() {
+		return binaryReader;
+	}
+
+	public WireFormat getFormat() {
+		return format;
 	}
 	
 	public String getName() {
 		return clientName;
 	}
 
+	public ClientSession getSession() {
+		return session;
+	}
+
 	public void run() {
 		try {
-			clientName = clientReader.readLine();
-
-			clientName = clientName.substring(clientName.indexOf(" ") + 1);
-			
-			clientName.trim();
-
-			System.out.println("<ChatThread Line 41: " + clientName + ">");
-
-			if (!Server2.userList.containsKey(clientName)) {
-				// adds HashMap value
-				Server2.userList.put(clientName, new DataOutputStream(socket.getOutputStream()));
-				
-				clientOutputStream.writeBytes("1" + " ");
-
-				Iterator iterator = Server2.userList.entrySet().iterator();
-
-				for (String key : Server2.userList.keySet()) {
-						clientOutputStream.writeBytes(key);
-						if(iterator.hasNext())
-							clientOutputStream.writeBytes(",");
-					}
-				
-                clientOutputStream.writeBytes(" " + "Welcome to the coolest server\r\n");
-                Server2.broadcastThread.add("10" + " " + clientName + "\r\n");
+			// a client that never says who it is doesn't keep its thread
+			if (Server2.READ_IDLE_MILLIS > 0)
+				socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Server2.READ_IDLE_MILLIS));
+
+			// a binary client starts with HELLO, a text client with "0 name"
+			clientInput.mark(1);
+			int first = clientInput.read();
+			clientInput.reset();
+
+			if (BinaryProtocol.isHello(first)) {
+				format = WireFormat.BINARY;
+				clientName = readBinaryName();
+
+				if (clientName == null) {
+					socket.close();
+					return;
+				}
+			}
+
+			else {
+				clientName = readTextName();
+
+				if (clientName == null) {
+					socket.close();
+					return;
+				}
+			}
+
+			// from here on the Reaper looks after it
+			socket.setSoTimeout(0);
+			Metrics.received(Frame.JOIN);
+			Log.debug("connected", "user", clientName, "format", format);
+
+			Compressor compressor = (options > 0 && (options & BinaryProtocol.DEFLATE) != 0) ? new Compressor() : null;
+			session = new ClientSession(clientName, socket, format, compressor);
+
+			if (format == WireFormat.BINARY)
+				session.liveness().answersPings();
+
+			if (Server2.sessions.register(session)) {
+				// the writer is not running yet, so broadcasts wait in the queue until the list is sent
+				// the list and the lobby's recent messages go out in one write
+				ByteArrayOutputStream reply = new ByteArrayOutputStream();
+				Frame[] frames = Server2.accept(session, presenceSeen);
+				Mailboxes.Mailbox mail = Server2.mailboxes.take(clientName);
+
+				if (options >= 0)
+					reply.write(options);
+
+				for (Frame frame : frames)
+					frame.writeTo(reply, format);
+
+				if (mail != null)
+					reply.write(mail.read(format).join());
+
+				try {
+					reply.writeTo(clientOutputStream);
+				}
+				catch (IOException e) {
+					// kept for next time
+					if (mail != null)
+						mail.putBack();
+					throw e;
+				}
+
+				if (mail != null)
+					mail.delivered();
+
+				for (Frame frame : frames)
+					Metrics.replayed(frame);
+
+                session.start();
+                Server2.reaper.watch(session);
+                Server2.joined(session);
                 thread = new Thread(new Connection(socket, this));
                 thread.run();
 				}
 				          
 			else {
-				clientOutputStream.writeBytes("2\r\n");
+				if (compressor != null)
+					compressor.end();
+				if (options >= 0)
+					clientOutputStream.write(options);
+
+				Frame.nameTaken().writeTo(clientOutputStream, format);
 				clientOutputStream.flush();
 				socket.close();
 			}
 		} 
+		catch (java.net.SocketTimeoutException e) {
+			Log.info("handshake_timed_out", "remote", socket.getRemoteSocketAddress());
+
+			try {
+				socket.close();
+			}
+			catch (java.io.IOException ignore) { }
+		}
 		catch (java.io.IOException e) {
-			System.err.println(e);
+			Log.warn("connection_failed", "user", clientName, "error", e);
+
+			// otherwise it would stay in the user list with nobody reading its queue
+			if (session != null)
+				session.drop();
 		}
 	}
+
+	/**
+	 * the text handshake, a "0 name" line
+	 */
+	private String readTextName() throws IOException {
+		Command join = new Command();
+
+		if (!decoder.read(join) || join.getCommand() != Frame.JOIN) {
+			return null;
+		}
+
+		presenceSeen = Presence.parseVersion(join.field(Command.TARGET));
+		return join.field(Command.USERNAME);
+	}
+
+	/**
+	 * the binary handshake, HELLO and then a join frame with the username.
+	 * The answer to a version 2 HELLO goes out in front of the reply.
+	 */
+	private String readBinaryName() throws IOException {
+		Command join = new Command();
+		int asked = BinaryProtocol.readHello(binaryReader);
+
+		if (asked >= 0)
+			options = BinaryProtocol.accept(asked);
+
+		if (!BinaryProtocol.read(binaryReader, join) || join.getCommand() != Frame.JOIN) {
+			return null;
+		}
+
+		presenceSeen = Presence.parseVersion(join.field(Command.TARGET).trim());
+		return join.field(Command.USERNAME).trim();
+	}
 }
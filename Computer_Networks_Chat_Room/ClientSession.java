@@ -0,0 +1,292 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * A client of the thread per client server. Every client gets its own
+ * bounded queue and its own writer, so one client that stops reading
+ * only ever fills its own queue and never holds up the rest of the room.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClientSession implements Session, Runnable {
+
+	// tells the writer to stop, compared by reference
+	private static final Frame CLOSE = Frame.goodbye();
+
+	private final String clientName;
+	private final Socket socket;
+	private final WireFormat format;
+	private final OutputStream toClient;
+	// deflates each batch when the client asked for it, otherwise null
+	private final Compressor compressor;
+	private final ArrayBlockingQueue<Frame> outbound;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private volatile Frame lastMessage = null;
+	private volatile Room room = null;
+	private volatile boolean presenceVersioned = false;
+	private int id = -1;
+	private final Liveness liveness = new Liveness();
+	// the frames in the batch being written, only the writer touches it
+	private final ArrayList<Frame> batch = new ArrayList<Frame>();
+
+	public ClientSession(String clientName, Socket socket, WireFormat format, Compressor compressor) throws IOException {
+		this.clientName = clientName;
+		this.socket = socket;
+		this.format = format;
+		this.compressor = compressor;
+		// frames arrive already encoded, the buffer gathers a batch of them for one write
+		this.toClient = new BufferedOutputStream(socket.getOutputStream(), Server2.FLUSH_MAX_BYTES);
+		this.outbound = new ArrayBlockingQueue<Frame>(Server2.OUTBOUND_CAPACITY);
+	}
+
+	public String getName() {
+		return clientName;
+	}
+
+	public WireFormat getFormat() {
+		return format;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public Room getRoom() {
+		return room;
+	}
+
+	public void setRoom(Room room) {
+		this.room = room;
+	}
+
+	public boolean isPresenceVersioned() {
+		return presenceVersioned;
+	}
+
+	public void setPresenceVersioned() {
+		presenceVersioned = true;
+	}
+
+	public Liveness liveness() {
+		return liveness;
+	}
+
+	public int backlog() {
+		return outbound.size();
+	}
+
+	public void start() {
+		if (started.compareAndSet(false, true)) {
+			Server2.execute(this);
+		}
+	}
+
+	public void send(Frame message) {
+		if (closed) {
+			return;
+		}
+
+		switch (Server2.OVERFLOW_POLICY) {
+			case DROP_OLDEST:
+				while (!outbound.offer(message)) {
+					if (outbound.poll() != null)
+						Metrics.dropped();
+				}
+				break;
+
+			case DROP_CLIENT:
+				if (!outbound.offer(message)) {
+					evict();
+				}
+				break;
+
+			case BLOCK:
+				try {
+					if (!outbound.offer(message, Server2.BLOCK_MILLIS, TimeUnit.MILLISECONDS)) {
+						evict();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+		}
+	}
+
+	public void close(Frame lastMessage) {
+		this.lastMessage = lastMessage;
+		stop();
+		start();
+	}
+
+	public void drop() {
+		Server2.leave(this);
+		stop();
+
+		// a writer stuck on the socket gets an IOException and stops
+		try {
+			socket.close();
+		}
+		catch (IOException ignore) { }
+	}
+
+	/**
+	 * the client could not keep up, drop it without writing anything else
+	 */
+	private void evict() {
+		Log.warn("evicted", "user", clientName);
+		Metrics.evicted();
+		drop();
+	}
+
+	/**
+	 * no more messages are accepted and the writer stops after what is queued
+	 */
+	private void stop() {
+		closed = true;
+
+		// make room for the marker if the client is not reading
+		while (!outbound.offer(CLOSE)) {
+			outbound.poll();
+		}
+	}
+
+	/**
+	 * the writer, runs until close() or until the client goes away
+	 */
+	public void run() {
+		try {
+			while (true) {
+				Frame message = outbound.take();
+
+				if (message == CLOSE || !writeBatch(message)) {
+					break;
+				}
+			}
+
+			if (lastMessage != null) {
+				lastMessage.writeTo(toClient, format);
+			}
+
+			toClient.flush();
+		}
+
+		catch (IOException e) {
+			Server2.leave(this);
+		}
+
+		catch (InterruptedException ignore) { }
+
+		finally {
+			closed = true;
+			liveness.closed();
+
+			if (compressor != null)
+				compressor.end();
+
+			try {
+				socket.close();
+			}
+			catch (IOException ignore) { }
+		}
+	}
+
+	/**
+	 * writes message and whatever else is queued behind it with one flush.
+	 * The batch ends at -Dchat.flush.maxBytes, or when the queue is empty
+	 * and the first message has waited -Dchat.flush.maxLatencyMillis.
+	 *
+	 * returns false once the batch reached the CLOSE marker
+	 */
+	private boolean writeBatch(Frame message) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + Server2.FLUSH_MAX_LATENCY_MILLIS * 1000000L;
+		int frames = 0;
+		long bytes = 0;
+		boolean open = true;
+		batch.clear();
+		// a client that takes none of this for -Dchat.idle.writeMillis is dropped
+		liveness.writing();
+
+		while (true) {
+			// with compression the batch is written once it is complete
+			if (compressor == null)
+				message.writeTo(toClient, format);
+
+			batch.add(message);
+			frames++;
+			bytes += message.length(format);
+
+			if (bytes >= Server2.FLUSH_MAX_BYTES) {
+				break;
+			}
+
+			message = outbound.poll();
+
+			if (message == null && Server2.FLUSH_MAX_LATENCY_MILLIS > 0) {
+				long wait = deadline - System.nanoTime();
+
+				if (wait > 0) {
+					message = outbound.poll(wait, TimeUnit.NANOSECONDS);
+				}
+			}
+
+			if (message == null) {
+				break;
+			}
+
+			if (message == CLOSE) {
+				open = false;
+				break;
+			}
+		}
+
+		if (compressor != null) {
+			bytes = writeCompressed(bytes);
+		}
+
+		toClient.flush();
+		liveness.wrote();
+		FlushStats.record(frames, bytes);
+
+		long now = System.nanoTime();
+
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.get(i).getCommand() == Frame.PING)
+				liveness.pinged();
+
+			Metrics.written(batch.get(i), now);
+		}
+
+		return open;
+	}
+
+	/**
+	 * the batch as one compressed block, or as it is if it is too small,
+	 * returns the bytes written
+	 */
+	private long writeCompressed(long bytes) throws IOException {
+		byte[] block = compressor.compress(batch, bytes);
+
+		if (block != null) {
+			toClient.write(block);
+			return block.length;
+		}
+
+		for (int i = 0; i < batch.size(); i++)
+			batch.get(i).writeTo(toClient, format);
+
+		return bytes;
+	}
+}
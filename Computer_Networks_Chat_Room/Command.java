@@ -0,0 +1,200 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The last command read from a client, in either protocol. A connection
+ * keeps one of these and reuses it for every message, the fields are only
+ * offsets into the bytes that were read, so nothing is allocated until a
+ * field is actually turned into a String.
+ */
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public final class Command {
+
+	// the fields every binary frame carries, in order
+	public static final int USERNAME = 0;
+	public static final int TARGET = 1;
+	public static final int TIMESTAMP = 2;
+	public static final int BODY = 3;
+	static final int FIELDS = 4;
+
+	private int command = -1;
+	private byte[] data = new byte[256];
+	private byte[] source = data;
+	private Charset charset = StandardCharsets.UTF_8;
+	private final int[] offsets = new int[FIELDS];
+	private final int[] lengths = new int[FIELDS];
+
+	public int getCommand() {
+		return command;
+	}
+
+	public String field(int field) {
+		return new String(source, offsets[field], lengths[field], charset);
+	}
+
+	public int fieldLength(int field) {
+		return lengths[field];
+	}
+
+	/**
+	 * this command's own buffer, at least size bytes long, for readers
+	 * that have to copy the frame somewhere first
+	 */
+	byte[] buffer(int size) {
+		if (data.length < size) {
+			data = new byte[Math.max(size, data.length * 2)];
+		}
+
+		return data;
+	}
+
+	/**
+	 * points the fields at a frame body (command byte and fields, without
+	 * the length prefix) that sits in bytes from offset on
+	 */
+	void parse(byte[] bytes, int offset, int length) throws ProtocolException {
+		int end = offset + length;
+		int position = offset;
+
+		command = bytes[position++] & 0xff;
+
+		for (int field = 0; field < FIELDS; field++) {
+			if (position + 2 > end) {
+				throw new ProtocolException("frame too short for its fields");
+			}
+
+			int fieldLength = ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+			position += 2;
+
+			if (position + fieldLength > end) {
+				throw new ProtocolException("field runs past the end of the frame");
+			}
+
+			offsets[field] = position;
+			lengths[field] = fieldLength;
+			position += fieldLength;
+		}
+
+		source = bytes;
+		charset = StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * points the fields at one text protocol line (without the \n) that
+	 * sits in bytes from offset on. Text clients send
+	 *	0 name [presence version]
+	 *	3message
+	 *	4 from to message
+	 *	7
+	 *	11 room
+	 *	12
+	 *	13
+	 *	19
+	 *	20
+	 *	22 presence version
+	 * and a line that does not fit its command comes out as command -1.
+	 * 3 has no space after it, so only a 1 or a 2 can start a two digit
+	 * command.
+	 */
+	void parseLine(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+
+		if (end > offset && bytes[end - 1] == '\r') {
+			end--;
+		}
+
+		for (int field = 0; field < FIELDS; field++) {
+			offsets[field] = offset;
+			lengths[field] = 0;
+		}
+
+		source = bytes;
+		// the same bytes DataOutputStream.writeBytes sends back out
+		charset = StandardCharsets.ISO_8859_1;
+		command = (end > offset && isDigit(bytes[offset])) ? bytes[offset] - '0' : -1;
+		int start = offset + 1;
+
+		if ((command == 1 || command == 2) && start < end && isDigit(bytes[start])) {
+			command = command * 10 + bytes[start++] - '0';
+		}
+
+		switch (command) {
+			case Frame.JOIN: {
+				// the name is one word, anything after it is the version
+				int space = indexOf(bytes, offset, end, (byte) ' ');
+				int from = (space < 0) ? end : space + 1;
+
+				while (from < end && bytes[from] == ' ')
+					from++;
+
+				int after = indexOf(bytes, from, end, (byte) ' ');
+				setTrimmed(USERNAME, from, (after < 0) ? end : after);
+
+				if (after >= 0)
+					setTrimmed(TARGET, after + 1, end);
+				break;
+			}
+
+			case Frame.PUBLIC:
+				setField(BODY, start, end);
+				break;
+
+			case Frame.JOIN_ROOM:
+			case Frame.SYNC:
+				setTrimmed(TARGET, start, end);
+				break;
+
+			case Frame.PRIVATE: {
+				int first = indexOf(bytes, offset, end, (byte) ' ');
+				int second = (first < 0) ? -1 : indexOf(bytes, first + 1, end, (byte) ' ');
+				int third = (second < 0) ? -1 : indexOf(bytes, second + 1, end, (byte) ' ');
+
+				if (third < 0) {
+					command = -1;
+					break;
+				}
+
+				setField(USERNAME, first + 1, second);
+				setField(TARGET, second + 1, third);
+				setField(BODY, third + 1, end);
+				break;
+			}
+		}
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	/**
+	 * names are trimmed of spaces on both ends
+	 */
+	private void setTrimmed(int field, int start, int end) {
+		while (start < end && source[start] == ' ')
+			start++;
+		while (end > start && source[end - 1] == ' ')
+			end--;
+
+		setField(field, start, end);
+	}
+
+	private void setField(int field, int start, int end) {
+		offsets[field] = start;
+		lengths[field] = end - start;
+	}
+
+	static int indexOf(byte[] bytes, int from, int end, byte b) {
+		for (int i = from; i < end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
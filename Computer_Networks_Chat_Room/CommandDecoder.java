@@ -0,0 +1,104 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Reads text protocol commands without making a String per line. Bytes
+ * go into one buffer per connection and every line is parsed where it
+ * sits into a reused Command, the only thing a message allocates is the
+ * Frame that goes back out.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public final class CommandDecoder {
+
+	// longest line a client may send
+	public static final int MAX_LINE_LENGTH = 8192;
+
+	private final InputStream in;
+	private byte[] buffer = new byte[4096];
+	private int start = 0;
+	private int end = 0;
+
+	public CommandDecoder(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * blocks until a whole line has arrived and parses it into command,
+	 * false at end of stream
+	 */
+	public boolean read(Command command) throws IOException {
+		// how far past start has been searched already, fill() may move start
+		int scanned = 0;
+
+		while (true) {
+			int newline = Command.indexOf(buffer, start + scanned, end, (byte) '\n');
+
+			if (newline >= 0) {
+				command.parseLine(buffer, start, newline - start);
+				start = newline + 1;
+				return true;
+			}
+
+			scanned = end - start;
+
+			if (!fill()) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * reads more bytes, moving what is left to the front or growing the
+	 * buffer when it is full
+	 */
+	private boolean fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+
+		if (end == buffer.length) {
+			if (buffer.length >= MAX_LINE_LENGTH) {
+				throw new ProtocolException("line longer than " + MAX_LINE_LENGTH + " bytes");
+			}
+
+			byte[] bigger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, bigger, 0, end);
+			buffer = bigger;
+		}
+
+		int count = in.read(buffer, end, buffer.length - end);
+
+		if (count < 0) {
+			return false;
+		}
+
+		end += count;
+		return true;
+	}
+
+	/**
+	 * parses the next line straight out of in if all of it has arrived,
+	 * otherwise leaves in alone and returns false. The command points into
+	 * in's array, so use it before in is compacted or read into again.
+	 */
+	public static boolean decode(ByteBuffer in, Command command) {
+		byte[] bytes = in.array();
+		int from = in.arrayOffset() + in.position();
+		int newline = Command.indexOf(bytes, from, in.arrayOffset() + in.limit(), (byte) '\n');
+
+		if (newline < 0) {
+			return false;
+		}
+
+		command.parseLine(bytes, from, newline - from);
+		in.position(newline + 1 - in.arrayOffset());
+		return true;
+	}
+}
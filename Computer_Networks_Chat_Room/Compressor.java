@@ -0,0 +1,151 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Deflate for a binary client that asked for it in its HELLO. Each
+ * client gets its own deflate stream, so a batch of messages is
+ * compressed against everything that client was sent before, and every
+ * batch ends with a sync flush so the client can inflate it as soon as
+ * it arrives. Both ends start from the same dictionary of sample frames,
+ * so even the first messages compress.
+ *
+ * A batch under -Dchat.compress.minBytes (default 256) goes out as plain
+ * frames, deflating a lone short message costs more than it saves.
+ *
+ *	-Dchat.compress=false		turn it down when a client asks
+ *	-Dchat.compress.level		deflate level, 1 to 9 (default 1)
+ *
+ * Deflate keeps about 256 KB of native memory per stream, so it is
+ * meant for clients in busy rooms, not for everyone.
+ */
+
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public final class Compressor {
+
+	static final boolean ENABLED = !"false".equals(System.getProperty("chat.compress"));
+	static final int MIN_BYTES = Integer.getInteger("chat.compress.minBytes", 256);
+	static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+
+	// what both ends prime their streams with
+	static final byte[] DICTIONARY = dictionary();
+
+	// over every client, for Metrics
+	private static final LongAdder frames = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder nanos = new LongAdder();
+
+	private final Deflater deflater = new Deflater(LEVEL, true);
+	private final Block block = new Block();
+	private final DeflaterOutputStream out;
+
+	Compressor() {
+		deflater.setDictionary(DICTIONARY);
+		out = new DeflaterOutputStream(block, deflater, 4096, true);
+	}
+
+	/**
+	 * sample frames of every kind a client is sent, the most common last
+	 * because deflate finds the end of the dictionary cheapest to refer to
+	 */
+	private static byte[] dictionary() {
+		String stamp = "2016:04:20:12:00:00";
+		Frame[] samples = {
+			Frame.accepted("", "welcome"),
+			Frame.presence(1460000000000000L, "alice,bob"),
+			Frame.roomList("lobby,general"),
+			Frame.roomJoined("lobby", "alice,bob"),
+			Frame.joined("alice", 1460000000000001L),
+			Frame.left("alice", 1460000000000002L),
+			Frame.enteredRoom("lobby", "alice"),
+			Frame.leftRoom("lobby", "alice"),
+			Frame.receipt("bob", Mailboxes.DELIVERED),
+			Frame.privateMessage("alice", "bob", stamp, "are you there? I think that we should"),
+			Frame.publicMessage("bob", stamp, "hello everyone, what is the room for"),
+			Frame.publicMessage("alice", stamp, "the message is this and you have it"),
+		};
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (Frame sample : samples)
+			out.write(BinaryProtocol.encode(sample), 0, sample.length(WireFormat.BINARY));
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * frames, bytes long in the binary protocol, as one compressed block
+	 * ready to write. Null if they are under MIN_BYTES, or too many for
+	 * one block, and should be written as they are.
+	 */
+	byte[] compress(List<Frame> batch, long bytes) throws IOException {
+		if (bytes < MIN_BYTES || bytes > BinaryProtocol.MAX_FRAME) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+		block.start();
+
+		for (int i = 0; i < batch.size(); i++)
+			batch.get(i).writeTo(out, WireFormat.BINARY);
+
+		// a sync flush, the block ends on a byte boundary with nothing held back
+		out.flush();
+		byte[] compressed = block.finish();
+
+		frames.add(batch.size());
+		bytesIn.add(bytes);
+		bytesOut.add(compressed.length);
+		nanos.add(System.nanoTime() - start);
+		return compressed;
+	}
+
+	/**
+	 * frees the native memory, the client is gone
+	 */
+	void end() {
+		deflater.end();
+	}
+
+	static long frames() {
+		return frames.sum();
+	}
+
+	static long bytesIn() {
+		return bytesIn.sum();
+	}
+
+	static long bytesOut() {
+		return bytesOut.sum();
+	}
+
+	static long nanos() {
+		return nanos.sum();
+	}
+
+	/**
+	 * the block being built, with room for its length in front
+	 */
+	private static final class Block extends ByteArrayOutputStream {
+
+		void start() {
+			reset();
+			count = 4;
+		}
+
+		byte[] finish() {
+			int length = (count - 4) | BinaryProtocol.COMPRESSED;
+			buf[0] = (byte) (length >>> 24);
+			buf[1] = (byte) (length >>> 16);
+			buf[2] = (byte) (length >>> 8);
+			buf[3] = (byte) length;
+			return toByteArray();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The client's end of Compressor, one per connection. Every block the
+ * server sends is inflated on the same stream, primed with the same
+ * dictionary, and comes out as whole binary frames.
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public final class Decompressor {
+
+	private final Inflater inflater = new Inflater(true);
+	private byte[] out = new byte[8192];
+
+	Decompressor() {
+		inflater.setDictionary(Compressor.DICTIONARY);
+	}
+
+	/**
+	 * inflates one block, the frames it held are in the returned buffer
+	 * until the next call
+	 */
+	ByteBuffer inflate(byte[] in, int offset, int length) throws ProtocolException {
+		inflater.setInput(in, offset, length);
+		int inflated = 0;
+
+		try {
+			while (true) {
+				if (inflated == out.length) {
+					// the server never puts more than one frame's worth in a block
+					if (out.length > BinaryProtocol.MAX_FRAME) {
+						throw new ProtocolException("compressed block bigger than " + BinaryProtocol.MAX_FRAME + " bytes");
+					}
+
+					out = Arrays.copyOf(out, Math.min(out.length * 2, BinaryProtocol.MAX_FRAME + 1));
+				}
+
+				int count = inflater.inflate(out, inflated, out.length - inflated);
+
+				if (count == 0) {
+					break;
+				}
+
+				inflated += count;
+			}
+		}
+
+		catch (DataFormatException e) {
+			throw new ProtocolException("bad compressed block: " + e.getMessage());
+		}
+
+		return ByteBuffer.wrap(out, 0, inflated);
+	}
+
+	/**
+	 * frees the native memory, the connection is gone
+	 */
+	void end() {
+		inflater.end();
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Counts how many frames and bytes go out with each flush, over all
+ * clients in both server modes. frames per flush near 1 means every
+ * message costs its own write, a busy room should see it climb.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class FlushStats {
+
+	private static final LongAdder flushes = new LongAdder();
+	private static final LongAdder frames = new LongAdder();
+	private static final LongAdder bytes = new LongAdder();
+	private static final AtomicLong largest = new AtomicLong(0);
+
+	private FlushStats() {
+	}
+
+	/**
+	 * one flush, or one gathering write, that carried frameCount frames
+	 */
+	static void record(int frameCount, long byteCount) {
+		flushes.increment();
+		frames.add(frameCount);
+		bytes.add(byteCount);
+
+		long max;
+		while (frameCount > (max = largest.get()) && !largest.compareAndSet(max, frameCount)) { }
+	}
+
+	public static long flushes() {
+		return flushes.sum();
+	}
+
+	public static long frames() {
+		return frames.sum();
+	}
+
+	public static long bytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * the most frames any one flush carried
+	 */
+	public static long largestFlush() {
+		return largest.get();
+	}
+
+	public static double framesPerFlush() {
+		long count = flushes();
+		return (count == 0) ? 0 : (double) frames() / count;
+	}
+
+	public static String summary() {
+		long count = flushes();
+		return String.format("flushes %d, frames/flush %.2f, bytes/flush %.0f, largest flush %d frames",
+				count, framesPerFlush(), (count == 0) ? 0.0 : (double) bytes() / count, largestFlush());
+	}
+}
@@ -0,0 +1,399 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * One protocol message, encoded at most once per wire format. A broadcast
+ * is built once and the same Frame is handed to every client, each client
+ * writes the bytes for the format it negotiated. Nobody writes to the
+ * bytes after they are built.
+ *
+ * The command numbers are the protocol's:
+ *	0 join		username, target (the presence version last seen, 0 for
+ *			none, empty for a client that doesn't keep versions)
+ *	1 accepted	target holds the comma separated users, body the welcome.
+ *			A client that sent a version gets an empty target and 21
+ *			follows with who is here.
+ *	2 name taken
+ *	3 public	body
+ *	4 private	username (from), target, body
+ *	5 public	username, timestamp, body
+ *	6 private	username (from), target, timestamp, body
+ *	7 disconnect
+ *	8 goodbye
+ *	9 left		username, target (presence version, only to clients that sent one)
+ *	10 joined	username, target (presence version, only to clients that sent one)
+ *	11 join room	target (room)
+ *	12 leave room	back to the lobby
+ *	13 list rooms
+ *	14 in room	target (room), body holds the comma separated members
+ *	15 room list	body holds the comma separated rooms
+ *	16 entered room	target (room), username
+ *	17 left room	target (room), username
+ *	18 rejected	target (the command turned away), body (why)
+ *	19 ping		either side may send it, the other answers 20
+ *	20 pong
+ *	21 presence	target (presence version), body holds the comma separated users
+ *	22 sync		target (the presence version the client has), see Presence
+ *	23 receipt	target (who a 4 was for), body (delivered, stored, full or unknown),
+ *			see Mailboxes
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Frame {
+
+	public static final int JOIN = 0;
+	public static final int ACCEPTED = 1;
+	public static final int NAME_TAKEN = 2;
+	public static final int PUBLIC = 3;
+	public static final int PRIVATE = 4;
+	public static final int PUBLIC_MESSAGE = 5;
+	public static final int PRIVATE_MESSAGE = 6;
+	public static final int DISCONNECT = 7;
+	public static final int GOODBYE = 8;
+	public static final int LEFT = 9;
+	public static final int JOINED = 10;
+	public static final int JOIN_ROOM = 11;
+	public static final int LEAVE_ROOM = 12;
+	public static final int LIST_ROOMS = 13;
+	public static final int ROOM_JOINED = 14;
+	public static final int ROOM_LIST = 15;
+	public static final int ENTERED_ROOM = 16;
+	public static final int LEFT_ROOM = 17;
+	public static final int REJECTED = 18;
+	public static final int PING = 19;
+	public static final int PONG = 20;
+	public static final int PRESENCE = 21;
+	public static final int SYNC = 22;
+	public static final int RECEIPT = 23;
+
+	private final int command;
+	private final String username;
+	private final String target;
+	private final String timestamp;
+	private final String body;
+
+	// a 9 or 10 without its version, set before the frame is handed out
+	private Frame unversioned = this;
+
+	private final byte[] text;
+	private volatile byte[] binary = null;
+	// System.nanoTime() when the frame was built, for Metrics' latency
+	private final long created = System.nanoTime();
+
+	private Frame(int command, String username, String target, String timestamp, String body) {
+		this.command = command;
+		this.username = username;
+		this.target = target;
+		this.timestamp = timestamp;
+		this.body = body;
+
+		// nearly every client speaks text, so that encoding is always built
+		this.text = toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	public static Frame join(String username) {
+		return new Frame(JOIN, username, "", "", "");
+	}
+
+	/**
+	 * a join from a client that saw presence version seen before
+	 */
+	public static Frame join(String username, long seen) {
+		return new Frame(JOIN, username, (seen >= 0) ? Long.toString(seen) : "", "", "");
+	}
+
+	public static Frame accepted(String userList, String welcome) {
+		return new Frame(ACCEPTED, "", userList, "", welcome);
+	}
+
+	public static Frame nameTaken() {
+		return new Frame(NAME_TAKEN, "", "", "", "");
+	}
+
+	public static Frame publicRequest(String message) {
+		return new Frame(PUBLIC, "", "", "", message);
+	}
+
+	public static Frame privateRequest(String fromUsername, String toUsername, String message) {
+		return new Frame(PRIVATE, fromUsername, toUsername, "", message);
+	}
+
+	public static Frame publicMessage(String fromUsername, String timestamp, String message) {
+		return new Frame(PUBLIC_MESSAGE, fromUsername, "", timestamp, message);
+	}
+
+	public static Frame privateMessage(String fromUsername, String toUsername, String timestamp, String message) {
+		return new Frame(PRIVATE_MESSAGE, fromUsername, toUsername, timestamp, message);
+	}
+
+	public static Frame disconnect() {
+		return new Frame(DISCONNECT, "", "", "", "");
+	}
+
+	public static Frame goodbye() {
+		return new Frame(GOODBYE, "", "", "", "");
+	}
+
+	public static Frame left(String username, long version) {
+		Frame frame = new Frame(LEFT, username, Long.toString(version), "", "");
+		frame.unversioned = new Frame(LEFT, username, "", "", "");
+		return frame;
+	}
+
+	public static Frame joined(String username, long version) {
+		Frame frame = new Frame(JOINED, username, Long.toString(version), "", "");
+		frame.unversioned = new Frame(JOINED, username, "", "", "");
+		return frame;
+	}
+
+	public static Frame joinRoom(String room) {
+		return new Frame(JOIN_ROOM, "", room, "", "");
+	}
+
+	public static Frame leaveRoom() {
+		return new Frame(LEAVE_ROOM, "", "", "", "");
+	}
+
+	public static Frame listRooms() {
+		return new Frame(LIST_ROOMS, "", "", "", "");
+	}
+
+	public static Frame roomJoined(String room, String members) {
+		return new Frame(ROOM_JOINED, "", room, "", members);
+	}
+
+	public static Frame roomList(String rooms) {
+		return new Frame(ROOM_LIST, "", "", "", rooms);
+	}
+
+	public static Frame enteredRoom(String room, String username) {
+		return new Frame(ENTERED_ROOM, username, room, "", "");
+	}
+
+	public static Frame leftRoom(String room, String username) {
+		return new Frame(LEFT_ROOM, username, room, "", "");
+	}
+
+	public static Frame rejected(int command, String reason) {
+		return new Frame(REJECTED, "", Integer.toString(command), "", reason);
+	}
+
+	public static Frame ping() {
+		return new Frame(PING, "", "", "", "");
+	}
+
+	public static Frame pong() {
+		return new Frame(PONG, "", "", "", "");
+	}
+
+	public static Frame presence(long version, String users) {
+		return new Frame(PRESENCE, "", Long.toString(version), "", users);
+	}
+
+	public static Frame sync(long version) {
+		return new Frame(SYNC, "", Long.toString(version), "", "");
+	}
+
+	public static Frame receipt(String toUsername, String status) {
+		return new Frame(RECEIPT, "", toUsername, "", status);
+	}
+
+	/**
+	 * the frame a binary client or server just read
+	 */
+	public static Frame from(Command command) {
+		return new Frame(command.getCommand(), command.field(Command.USERNAME), command.field(Command.TARGET),
+				command.field(Command.TIMESTAMP), command.field(Command.BODY));
+	}
+
+	/**
+	 * parses a line the server sent to a text client. The command is every
+	 * digit up to the first space, so 10 is not mistaken for 1, and the last
+	 * field keeps the rest of the line, spaces and all.
+	 */
+	public static Frame parse(String line) throws ProtocolException {
+		int end = 0;
+
+		while (end < line.length() && Character.isDigit(line.charAt(end)))
+			end++;
+
+		if (end == 0) {
+			throw new ProtocolException("no command number in " + line);
+		}
+
+		int command = Integer.parseInt(line.substring(0, end));
+		String rest = (end < line.length()) ? line.substring(end + 1) : "";
+
+		switch (command) {
+			case ACCEPTED: {
+				String[] fields = fields(rest, 2);
+				return accepted(fields[0], fields[1]);
+			}
+			case PUBLIC_MESSAGE: {
+				String[] fields = fields(rest, 3);
+				return publicMessage(fields[0], fields[1], fields[2]);
+			}
+			case PRIVATE_MESSAGE: {
+				String[] fields = fields(rest, 4);
+				return privateMessage(fields[0], fields[1], fields[2], fields[3]);
+			}
+			case JOIN:
+				return new Frame(command, rest, "", "", "");
+			case LEFT:
+			case JOINED: {
+				String[] fields = fields(rest, 2);
+				return new Frame(command, fields[0], fields[1], "", "");
+			}
+			case JOIN_ROOM:
+				return joinRoom(rest);
+			case ROOM_JOINED: {
+				String[] fields = fields(rest, 2);
+				return roomJoined(fields[0], fields[1]);
+			}
+			case ROOM_LIST:
+				return roomList(rest);
+			case ENTERED_ROOM:
+			case LEFT_ROOM: {
+				String[] fields = fields(rest, 2);
+				return new Frame(command, fields[1], fields[0], "", "");
+			}
+			case REJECTED:
+			case PRESENCE:
+			case RECEIPT: {
+				String[] fields = fields(rest, 2);
+				return new Frame(command, "", fields[0], "", fields[1]);
+			}
+			default:
+				return new Frame(command, "", "", "", "");
+		}
+	}
+
+	/**
+	 * splits rest into exactly count space separated fields, missing ones are empty
+	 */
+	private static String[] fields(String rest, int count) {
+		String[] split = rest.split(" ", count);
+		String[] fields = new String[count];
+
+		for (int i = 0; i < count; i++)
+			fields[i] = (i < split.length) ? split[i] : "";
+
+		return fields;
+	}
+
+	public int getCommand() {
+		return command;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getTimestamp() {
+		return timestamp;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * what a client that never sent a presence version is sent instead, the
+	 * 9 or 10 the way it was before versions, for anything else the frame
+	 */
+	public Frame unversioned() {
+		return unversioned;
+	}
+
+	/**
+	 * a read only view of the encoded frame with its own position, the
+	 * bytes underneath are shared by every client it goes to
+	 */
+	public ByteBuffer buffer(WireFormat format) {
+		return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+	}
+
+	public int length(WireFormat format) {
+		return bytes(format).length;
+	}
+
+	/**
+	 * copies the encoded frame into out
+	 */
+	public void writeTo(OutputStream out, WireFormat format) throws IOException {
+		out.write(bytes(format));
+	}
+
+	private byte[] bytes(WireFormat format) {
+		if (format == WireFormat.TEXT) {
+			return text;
+		}
+
+		// two threads may both encode the first time, they build the same bytes
+		byte[] encoded = binary;
+
+		if (encoded == null) {
+			encoded = BinaryProtocol.encode(this);
+			binary = encoded;
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * the text protocol line, the same bytes DataOutputStream.writeBytes put on the wire
+	 */
+	public String toString() {
+		switch (command) {
+			case JOIN:
+				return "0" + " " + username + (target.isEmpty() ? "" : " " + target) + "\r\n";
+			case ACCEPTED:
+				return "1" + " " + target + " " + body + "\r\n";
+			case PUBLIC:
+				return "3" + body + "\r\n";
+			case PRIVATE:
+				return "4" + " " + username + " " + target + " " + body + "\r\n";
+			case PUBLIC_MESSAGE:
+				return "5" + " " + username + " " + timestamp + " " + body + "\r\n";
+			case PRIVATE_MESSAGE:
+				return "6" + " " + username + " " + target + " " + timestamp + " " + body + "\r\n";
+			case LEFT:
+				return "9" + " " + username + (target.isEmpty() ? "" : " " + target) + "\r\n";
+			case JOINED:
+				return "10" + " " + username + (target.isEmpty() ? "" : " " + target) + "\r\n";
+			case JOIN_ROOM:
+				return "11" + " " + target + "\r\n";
+			case ROOM_JOINED:
+				return "14" + " " + target + " " + body + "\r\n";
+			case ROOM_LIST:
+				return "15" + " " + body + "\r\n";
+			case ENTERED_ROOM:
+				return "16" + " " + target + " " + username + "\r\n";
+			case LEFT_ROOM:
+				return "17" + " " + target + " " + username + "\r\n";
+			case REJECTED:
+				return "18" + " " + target + " " + body + "\r\n";
+			case PRESENCE:
+				return "21" + " " + target + " " + body + "\r\n";
+			case SYNC:
+				return "22" + " " + target + "\r\n";
+			case RECEIPT:
+				return "23" + " " + target + " " + body + "\r\n";
+			default:
+				return command + "\r\n";
+		}
+	}
+}
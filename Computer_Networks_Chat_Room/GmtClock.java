@@ -0,0 +1,57 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The yyyy:MM:dd:HH:mm:ss GMT stamp every message carries. The string for
+ * the current second is made once and shared by every message stamped in
+ * that second. Readers never lock, the first reader in a new second makes
+ * the new string and publishes it through a volatile field.
+ */
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public final class GmtClock {
+
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd:HH:mm:ss");
+	private static volatile Stamp current = new Stamp(Long.MIN_VALUE, null);
+
+	private GmtClock() {
+	}
+
+	/**
+	 * the stamp for now, the same String for the whole second
+	 */
+	public static String now() {
+		long second = Math.floorDiv(System.currentTimeMillis(), 1000L);
+		Stamp stamp = current;
+
+		if (stamp.second != second) {
+			// two threads may both get here, they make the same string
+			stamp = new Stamp(second, format(second));
+			current = stamp;
+		}
+
+		return stamp.text;
+	}
+
+	/**
+	 * what SimpleDateFormat("yyyy:MM:dd:HH:mm:ss") in GMT gives for second
+	 */
+	static String format(long epochSecond) {
+		return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).format(FORMAT);
+	}
+
+	private static final class Stamp {
+
+		final long second;
+		final String text;
+
+		Stamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -6,16 +6,22 @@
 
 import java.io.*;
 import java.net.*;
-import java.util.TimeZone;
-import java.util.Date;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 
 public class Handler {
 	
-        BufferedReader fromThread = null;
-        DataOutputStream toClient = null;
-        private static boolean STILL_CONNECTED = true;
+        // the same two answers go to every client that floods
+        private static final Frame PUBLIC_REJECTED = Frame.rejected(Frame.PUBLIC, "flood");
+        private static final Frame PRIVATE_REJECTED = Frame.rejected(Frame.PRIVATE, "flood");
+        // a binary client can put anything in a field, text clients would read a line break as a new line
+        private static final Frame PUBLIC_INVALID = Frame.rejected(Frame.PUBLIC, "invalid");
+        private static final Frame PRIVATE_INVALID = Frame.rejected(Frame.PRIVATE, "invalid");
+        private static final Frame PONG = Frame.pong();
+
+        private final Command command = new Command();
+        // one Handler reads one client, so its buckets are that client's
+        private final TokenBucket publicLimit = new TokenBucket(Server2.PUBLIC_RATE, Server2.PUBLIC_BURST);
+        private final TokenBucket privateLimit = new TokenBucket(Server2.PRIVATE_RATE, Server2.PRIVATE_BURST);
 
         /**
          * this method is invoked by a separate thread
@@ -25,84 +31,175 @@ public class Handler {
         public void process(Socket client, ChatThread chatThread) {
 
             try {
-                fromThread = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                toClient = new DataOutputStream(client.getOutputStream());
-
-                // when to set character encoding?
-                while(STILL_CONNECTED) {
-                    String clientInput = chatThread.getBufferedReader().readLine();					
-                    String command = clientInput.substring(0, 1);
-
-					// client sends general message to server
-                    if(command.equals("3")) {		// get name of person who posted message 		
-						String message = clientInput.substring(1);
-						Server2.broadcastThread.add("5 " + chatThread.getName() + " " + getDatetimeGMT() + " " + message + "\r\n");		// username in message?
-						
-						System.out.println("<Line 41, Command 3:" + "5 " + chatThread.getName() + " " + getDatetimeGMT() + " " + message + "\r\n" + ">");
-                    }
-                    
-                    // client sends private message to server
-                    else if(command.equals("4")) {
-						// gets a string without the command number and the first space
-						String withoutCommandNumber = clientInput.substring(clientInput.indexOf(" ") + 1);
-						
-						System.out.println("<Handler Line 49 Private Message withoutCommandNumber:" + withoutCommandNumber + ">");
-						
-						// gets who the message is from
-						String fromUsername = withoutCommandNumber.substring(0, withoutCommandNumber.indexOf(" "));
-						
-						System.out.println("<Handler Line 54 Private Message fromUsername:" + fromUsername + ">");
-						
-						// gets who the message is for
-						String toUsername = withoutCommandNumber.substring((withoutCommandNumber.indexOf(" ") + 1), withoutCommandNumber.indexOf(" ", (withoutCommandNumber.indexOf(" ") + 1)));		// gets who message is to
-						
-						System.out.println("<Handler Line 59 Private Message toUsername:" + toUsername + ">");
-						
-						// holder to get the actual message
-                        String holder = withoutCommandNumber.substring(withoutCommandNumber.indexOf(" ") + 1);;
-						String message = holder.substring(holder.indexOf(" ") + 1);
-						
-						System.out.println("<Handler Line 65 Private Message message:" + message + ">");
-						
-//						Socket toUsernameSocket = Server.userList.get(toUsername);
-//						toClient = new DataOutputStream(toUsernameSocket.getOutputStream());
-						toClient = Server2.userList.get(toUsername);
-						toClient.writeBytes("6" + " " + fromUsername + " " + toUsername + " "+ getDatetimeGMT() + " " + message + "\r\n");						
-                    }
-                    
-                    // client sends a disconnect request
-                    else if(command.equals("7")) {		
-						STILL_CONNECTED = false;	// if user sends a disconnect request, this will break out of while loop
+                // binary clients send frames, one Command is reused for all of them
+                if (chatThread.getFormat() == WireFormat.BINARY) {
+                    while (BinaryProtocol.read(chatThread.getBinaryReader(), command)) {
+                        if (!dispatch(chatThread.getSession(), command))
+                            return;
                     }
+
+                    // gone without a 7, the writer and the socket go too
+                    chatThread.getSession().drop();
+                    return;
+                }
+
+                // text lines are parsed in place into the same reused Command
+                while (chatThread.getDecoder().read(command)) {
+                    if (!dispatch(chatThread.getSession(), command))
+                        return;
                 }
-                
-                // closing the connection
-                toClient.writeBytes("8\r\n");
-                toClient.close();
-                fromThread.close();
-                client.close(); 
-                
-                // this is the message sent to all clients for a client who left
-                Server2.broadcastThread.add("9" + " " +chatThread.getName() + "\r\n");		
-				
-				// HashMap remove
-				Server2.userList.remove(chatThread.getName());
-				
+
+                chatThread.getSession().drop();
             }
             catch(java.io.IOException e) {
-                System.err.println(e);
+                Session session = chatThread.getSession();
+
+                // one that was dropped already had its socket closed under this read
+                if (Server2.sessions.get(session.getName()) == session)
+                    Log.warn("read_failed", "user", session.getName(), "error", e);
+
+                session.drop();
             }
         }
 
-        // helper method to get current GMT datetime
-        private static String getDatetimeGMT() {
-            DateFormat dateFormat = new SimpleDateFormat("yyyy:MM:dd:HH:mm:ss");
-            Date date = new Date();
-            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-            return dateFormat.format(date);
+        /**
+         * handles one command from a client, both protocols and both server
+         * modes come through here
+         *
+         * returns false once the client asked to disconnect
+         */
+        public boolean dispatch(Session session, Command command) {
+            Metrics.received(command.getCommand());
+            // anything at all, a 20 included, shows the client is still there
+            session.liveness().read();
+
+            switch (command.getCommand()) {
+                // over the limit is turned away before any frame is built
+                case Frame.PUBLIC:
+                    if (publicLimit.take(System.nanoTime()))
+                        publicMessage(session, command.field(Command.BODY));
+                    else
+                        reject(session, PUBLIC_REJECTED);
+                    return true;
+
+                case Frame.PRIVATE:
+                    if (privateLimit.take(System.nanoTime()))
+                        whisper(session, command.field(Command.USERNAME), command.field(Command.TARGET), command.field(Command.BODY));
+                    else
+                        reject(session, PRIVATE_REJECTED);
+                    return true;
+
+                case Frame.DISCONNECT:
+                    disconnect(session);
+                    return false;
+
+                case Frame.JOIN_ROOM:
+                    joinRoom(session, command.field(Command.TARGET));
+                    return true;
+
+                case Frame.LEAVE_ROOM:
+                    joinRoom(session, Room.LOBBY);
+                    return true;
+
+                case Frame.LIST_ROOMS:
+                    session.send(Frame.roomList(Server2.rooms.list()));
+                    return true;
+
+                case Frame.PING:
+                    session.send(PONG);
+                    return true;
+
+                // it was already heard from above, from now on a quiet spell can drop it
+                case Frame.PONG:
+                    session.liveness().answersPings();
+                    return true;
+
+                // the joins and leaves the client missed, in order
+                case Frame.SYNC:
+                    session.setPresenceVersioned();
+                    session.liveness().answersPings();
+
+                    for (Frame frame : Server2.presence.since(Presence.parseVersion(command.field(Command.TARGET))))
+                        session.send(frame);
+                    return true;
+
+                default:
+                    return true;
+            }
+        }
+
+        private static void publicMessage(Session session, String message) {
+            if (!isOneLine(message)) {
+                reject(session, PUBLIC_INVALID);
+                return;
+            }
+
+            // only the sender's room hears it
+            Room room = session.getRoom();
+            if (room != null) {
+                Frame frame = Frame.publicMessage(session.getName(), getDatetimeGMT(), message);
+                Log.debug("public", "from", session.getName(), "room", room.getName());
+                room.broadcast(frame);
+                Server2.record(frame, room.getName());
+            }
         }
-}
 
+        private static void reject(Session session, Frame reply) {
+            Metrics.rejected();
+            Log.debug("rejected", "user", session.getName(), "reply", reply);
+            session.send(reply);
+        }
+
+        private static void joinRoom(Session session, String name) {
+            if (!Rooms.isValidName(name))
+                return;
+
+            ArrayList<Frame> recent = new ArrayList<Frame>();
+            Room room = Server2.rooms.enter(session, name, true, recent);
+            session.send(Frame.roomJoined(room.getName(), room.memberNames()));
 
+            // queued together, so they go out in the same flush as the reply
+            for (Frame frame : recent)
+                session.send(frame);
+        }
+
+        private static void whisper(Session session, String fromUsername, String toUsername, String message) {
+            if (!Sessions.isValidName(fromUsername) || !Sessions.isValidName(toUsername) || !isOneLine(message)) {
+                reject(session, PRIVATE_INVALID);
+                return;
+            }
 
+            Frame frame = Frame.privateMessage(fromUsername, toUsername, getDatetimeGMT(), message);
+            // queued on the target's own session, its writer does the socket write
+            Session target = Server2.sessions.get(toUsername);
+            String status = Mailboxes.DELIVERED;
 
+            if (target != null)
+                target.send(frame);
+            else
+                status = Server2.mailboxes.store(toUsername, frame);
+
+            Log.debug("private", "from", fromUsername, "to", toUsername);
+
+            // only what reached someone or was kept for them
+            if (status == Mailboxes.DELIVERED || status == Mailboxes.STORED)
+                Server2.record(frame, "");
+
+            session.send(Frame.receipt(toUsername, status));
+        }
+
+        private static boolean isOneLine(String message) {
+            return message.indexOf('\r') < 0 && message.indexOf('\n') < 0;
+        }
+
+        private static void disconnect(Session session) {
+            // the writer sends 8 after anything still queued and then closes the socket
+            session.close(Frame.goodbye());
+            Server2.leave(session);
+        }
+
+        // helper method to get current GMT datetime, shared for the whole second
+        static String getDatetimeGMT() {
+            return GmtClock.now();
+        }
+}
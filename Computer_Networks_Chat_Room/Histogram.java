@@ -0,0 +1,137 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Counts of recorded values, for percentiles. Values below SUB_BUCKETS
+ * are counted exactly, bigger ones in buckets a power of two wide split
+ * into SUB_BUCKETS steps, so a percentile is within 1% of the true value
+ * whatever the range. The counts are one fixed array, recording never
+ * allocates or locks and any number of threads may record at once. A
+ * percentile read while others record is off by at most what they
+ * recorded in the meantime.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Histogram {
+
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// enough buckets for every non negative long
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * counts one value, negative values count as 0
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+
+		// only a new maximum pays for the compare and set
+		if (value > max.get())
+			max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * adds everything other recorded into this one
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+
+			if (c != 0)
+				counts.addAndGet(i, c);
+		}
+
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		max.accumulateAndGet(other.max.get(), Math::max);
+	}
+
+	/**
+	 * starts counting again, values recorded during the reset may be lost
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * the value that percent of the recorded values are at or below, 0 if
+	 * nothing was recorded
+	 */
+	public long percentile(double percent) {
+		long total = 0;
+
+		// counted from the buckets themselves, so the rank can't pass the end
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		// the top SUB_BITS bits under the leading one pick the step in its power of two
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * the biggest value that lands in bucket index
+	 */
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
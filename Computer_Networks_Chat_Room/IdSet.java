@@ -0,0 +1,133 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * A set of session ids, one bit each, that any thread can change. The
+ * words are one array of longs, so going over the members reads
+ * memory in order and makes nothing, and a thousand members are 16
+ * words. Only the words up to the highest id ever added are gone over.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class IdSet {
+
+	private final int capacity;
+	private final AtomicLongArray words;
+	private final AtomicInteger size = new AtomicInteger();
+	// words that have ever had a bit set, the rest are all 0
+	private final AtomicInteger used = new AtomicInteger();
+
+	/**
+	 * room for the ids 0 to capacity - 1
+	 */
+	public IdSet(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		words = new AtomicLongArray((this.capacity + 63) >>> 6);
+	}
+
+	/**
+	 * true if id was not in the set before
+	 */
+	boolean add(int id) {
+		int index = id >>> 6;
+		long bit = 1L << id;
+		long word;
+
+		do {
+			word = words.get(index);
+
+			if ((word & bit) != 0) {
+				return false;
+			}
+		} while (!words.compareAndSet(index, word, word | bit));
+
+		added(index);
+		return true;
+	}
+
+	/**
+	 * true if id was in the set
+	 */
+	boolean remove(int id) {
+		int index = id >>> 6;
+		long bit = 1L << id;
+		long word;
+
+		do {
+			word = words.get(index);
+
+			if ((word & bit) == 0) {
+				return false;
+			}
+		} while (!words.compareAndSet(index, word, word & ~bit));
+
+		size.decrementAndGet();
+		return true;
+	}
+
+	boolean contains(int id) {
+		return (words.get(id >>> 6) & (1L << id)) != 0;
+	}
+
+	/**
+	 * adds the lowest id not in the set and returns it, -1 if every id
+	 * is taken. Handing out the lowest keeps the ids, and so every
+	 * room's words, as few as they can be.
+	 */
+	int claim() {
+		for (int index = 0; index < words.length(); index++) {
+			long word;
+
+			while ((word = words.get(index)) != -1L) {
+				long bit = Long.lowestOneBit(~word);
+
+				int id = (index << 6) + Long.numberOfTrailingZeros(bit);
+
+				// the last word can have bits past the capacity
+				if (id >= capacity) {
+					return -1;
+				}
+
+				if (words.compareAndSet(index, word, word | bit)) {
+					added(index);
+					return id;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private void added(int index) {
+		size.incrementAndGet();
+
+		// only moves up, and only written the first time a word is used
+		if (used.get() <= index)
+			used.accumulateAndGet(index + 1, Math::max);
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * how many words to go over, every id in the set is below words() * 64
+	 */
+	int words() {
+		return used.get();
+	}
+
+	/**
+	 * ids index * 64 to index * 64 + 63, one bit each
+	 */
+	long word(int index) {
+		return words.get(index);
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * An append only log of what went through the server, every public (5),
+ * private (6), left (9) and joined (10) frame. Handlers only put the frame
+ * on a queue and never wake anyone. Every few milliseconds one journal
+ * thread copies everything queued into a memory mapped segment and syncs
+ * the whole batch to disk at once, so the broadcast path never waits on
+ * the disk or on the journal thread.
+ *
+ * A segment is a file of records,
+ *
+ *	long	milliseconds since 1970 when the frame was journaled
+ *	short	length of the room name, then the UTF-8 room name
+ *	the frame in the binary protocol, length prefix and all
+ *
+ * and ends at the first record whose time is 0, the file is made full
+ * size and zero filled up front. Next to every segment an index file
+ * holds a (time, offset) pair about every INDEX_EVERY bytes, so a reader
+ * can start near a point in time instead of at the front.
+ *
+ * If the journal thread fails, on a full disk say, the journal stops for
+ * good. Whatever was still queued and everything appended after that is
+ * dropped and counted in Metrics, so the queue can't grow without end.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class Journal implements Runnable {
+
+	// most frames written between two syncs
+	private static final int BATCH_SIZE = 1024;
+	// bytes of records between two index entries
+	static final int INDEX_EVERY = 64 * 1024;
+	static final int INDEX_ENTRY = 8 + 4;
+	private static final int FRAME_HEADER = 4;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final boolean sync;
+	private final long intervalNanos;
+	private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+	private volatile boolean stopped = false;
+
+	private int segment;
+	private FileChannel channel = null;
+	private MappedByteBuffer mapped = null;
+	private FileChannel index = null;
+	private final ByteBuffer indexEntries = ByteBuffer.allocate(INDEX_ENTRY * 256);
+	private int lastIndexed;
+
+	private Journal(File dir, int segmentBytes, boolean sync, long intervalMillis) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.sync = sync;
+		this.intervalNanos = Math.max(1, intervalMillis) * 1000000L;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't make journal directory " + dir);
+		}
+
+		// carry on at the end of the newest segment
+		File[] segments = segments(dir);
+		segment = (segments.length == 0) ? 0 : number(segments[segments.length - 1]);
+		openSegment();
+	}
+
+	/**
+	 * the journal in dir, null if dir is null and there is no journal
+	 */
+	public static Journal open(String dir, int segmentBytes, boolean sync, long intervalMillis) throws IOException {
+		if (dir == null) {
+			return null;
+		}
+
+		return new Journal(new File(dir), Math.max(segmentBytes, 2 * BinaryProtocol.MAX_FRAME), sync, intervalMillis);
+	}
+
+	/**
+	 * queue a frame, room is where it was said or "" for the whole server
+	 */
+	public void append(Frame frame, String room) {
+		if (stopped) {
+			Metrics.journalDropped(1);
+			return;
+		}
+
+		pending.add(new Entry(System.currentTimeMillis(), room, frame));
+
+		// the journal thread may have stopped and emptied the queue since the check
+		if (stopped) {
+			drop();
+		}
+	}
+
+	/**
+	 * empties the queue once the journal has stopped, counting what it held
+	 */
+	private void drop() {
+		int count = 0;
+
+		while (pending.poll() != null)
+			count++;
+
+		Metrics.journalDropped(count);
+	}
+
+	/**
+	 * the journal thread, writes whatever is queued and then syncs it once,
+	 * and sleeps out the interval when nothing is
+	 */
+	public void run() {
+		try {
+			while (true) {
+				Entry entry = pending.poll();
+
+				if (entry == null) {
+					LockSupport.parkNanos(this, intervalNanos);
+					continue;
+				}
+
+				int from = mapped.position();
+				int count = 0;
+
+				do {
+					if (write(entry)) {
+						// write rolled to a new segment, the old one was synced on the way out
+						from = 0;
+					}
+				} while (++count < BATCH_SIZE && (entry = pending.poll()) != null);
+
+				if (sync) {
+					mapped.force(from, mapped.position() - from);
+				}
+
+				flushIndex();
+			}
+		}
+
+		catch (IOException | RuntimeException e) {
+			stopped = true;
+			Metrics.journalStopped();
+			drop();
+			Log.error("journal_stopped", "error", e);
+		}
+	}
+
+	/**
+	 * copies one record into the segment, true if it had to roll first
+	 */
+	private boolean write(Entry entry) throws IOException {
+		byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = entry.frame.buffer(WireFormat.BINARY);
+		boolean rolled = false;
+
+		// room for the record and the 0 that ends the segment
+		if (mapped.remaining() < 8 + 2 + room.length + frame.remaining() + 8) {
+			roll();
+			rolled = true;
+		}
+
+		int offset = mapped.position();
+
+		if (offset == 0 || offset - lastIndexed >= INDEX_EVERY) {
+			indexEntries.putLong(entry.millis).putInt(offset);
+			lastIndexed = offset;
+
+			if (!indexEntries.hasRemaining()) {
+				flushIndex();
+			}
+		}
+
+		mapped.putLong(entry.millis);
+		mapped.putShort((short) room.length);
+		mapped.put(room);
+		mapped.put(frame);
+		return rolled;
+	}
+
+	private void roll() throws IOException {
+		if (sync) {
+			mapped.force();
+		}
+
+		flushIndex();
+		channel.close();
+		index.close();
+
+		segment++;
+		openSegment();
+	}
+
+	/**
+	 * maps the current segment, making it if it is new, and finds its end
+	 */
+	private void openSegment() throws IOException {
+		File file = segmentFile(dir, segment);
+		long size = Math.max(file.length(), segmentBytes);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mapped.position(end(mapped, 0));
+
+		index = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		// a segment that already has records was indexed when they were written
+		lastIndexed = (mapped.position() == 0) ? -INDEX_EVERY : mapped.position();
+	}
+
+	/**
+	 * the index is only a shortcut, a reader scans past whatever it misses,
+	 * so it is written with the batch but never synced
+	 */
+	private void flushIndex() throws IOException {
+		indexEntries.flip();
+
+		while (indexEntries.hasRemaining())
+			index.write(indexEntries);
+
+		indexEntries.clear();
+	}
+
+	/**
+	 * the offset of the end marker, scanning records from offset on
+	 */
+	static int end(ByteBuffer segment, int offset) {
+		while (offset + 8 <= segment.limit() && segment.getLong(offset) != 0) {
+			offset = next(segment, offset);
+		}
+
+		return offset;
+	}
+
+	/**
+	 * the offset of the record after the one at offset
+	 */
+	static int next(ByteBuffer segment, int offset) {
+		int room = segment.getShort(offset + 8) & 0xffff;
+		int frame = offset + 8 + 2 + room;
+		return frame + FRAME_HEADER + segment.getInt(frame);
+	}
+
+	/**
+	 * where the first record at or after millis is, as {segment number,
+	 * offset}. The index gets close, the records in between are skipped.
+	 */
+	public static int[] seek(File dir, long millis) throws IOException {
+		File[] segments = segments(dir);
+
+		if (segments.length == 0) {
+			return new int[] { 0, 0 };
+		}
+
+		// the last segment that starts at or before millis
+		int chosen = 0;
+
+		for (int i = 0; i < segments.length; i++) {
+			ByteBuffer first = read(segments[i], 8);
+
+			if (first.remaining() == 8 && first.getLong(0) != 0 && first.getLong(0) <= millis) {
+				chosen = i;
+			}
+		}
+
+		int offset = 0;
+		ByteBuffer entries = read(indexFile(segments[chosen]), Integer.MAX_VALUE);
+
+		for (int i = 0; i + INDEX_ENTRY <= entries.limit(); i += INDEX_ENTRY) {
+			if (entries.getLong(i) > millis) {
+				break;
+			}
+
+			offset = entries.getInt(i + 8);
+		}
+
+		FileChannel channel = FileChannel.open(segments[chosen].toPath(), StandardOpenOption.READ);
+
+		try {
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			while (offset + 8 <= records.limit() && records.getLong(offset) != 0 && records.getLong(offset) < millis) {
+				offset = next(records, offset);
+			}
+		}
+
+		finally {
+			channel.close();
+		}
+
+		return new int[] { number(segments[chosen]), offset };
+	}
+
+	/**
+	 * the segment files in dir, oldest first
+	 */
+	static File[] segments(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File parent, String name) {
+				return name.startsWith("segment-") && name.endsWith(".log");
+			}
+		});
+
+		if (files == null) {
+			return new File[0];
+		}
+
+		Arrays.sort(files);
+		return files;
+	}
+
+	static File segmentFile(File dir, int number) {
+		return new File(dir, String.format("segment-%08d.log", number));
+	}
+
+	static File indexFile(File segment) {
+		return new File(segment.getPath().replaceFirst("\\.log$", ".idx"));
+	}
+
+	static int number(File segment) {
+		String name = segment.getName();
+		return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+	}
+
+	/**
+	 * up to max bytes from the front of file, empty if it does not exist
+	 */
+	private static ByteBuffer read(File file, int max) throws IOException {
+		if (!file.exists()) {
+			return ByteBuffer.allocate(0);
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(channel.size(), max));
+
+			while (bytes.hasRemaining() && channel.read(bytes) >= 0) { }
+
+			bytes.flip();
+			return bytes;
+		}
+
+		finally {
+			channel.close();
+		}
+	}
+
+	private static final class Entry {
+
+		final long millis;
+		final String room;
+		final Frame frame;
+
+		Entry(long millis, String room, Frame frame) {
+			this.millis = millis;
+			this.room = room;
+			this.frame = frame;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Streams a journal back out as fast as it can be read. Every record is
+ * printed as the room, a tab and the text protocol line the clients got,
+ * and a count and rate go to stderr at the end.
+ *
+ * Usage:
+ *	java JournalReplay <journal directory> [since yyyy:MM:dd:HH:mm:ss]
+ *	java JournalReplay <segment file>
+ *
+ * since uses the segment index to start at the first record from that
+ * second (GMT) on and carries on through the newer segments.
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public class JournalReplay {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java JournalReplay <journal directory> [since yyyy:MM:dd:HH:mm:ss] | <segment file>");
+			System.exit(1);
+		}
+
+		File path = new File(args[0]);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+		long start = System.nanoTime();
+		long[] totals = new long[2];
+
+		if (path.isFile()) {
+			replay(path, 0, out, totals);
+		}
+
+		else {
+			int[] from = { 0, 0 };
+
+			if (args.length > 1) {
+				long since = LocalDateTime.parse(args[1], DateTimeFormatter.ofPattern("yyyy:MM:dd:HH:mm:ss")).toInstant(ZoneOffset.UTC).toEpochMilli();
+				from = Journal.seek(path, since);
+			}
+
+			for (File segment : Journal.segments(path)) {
+				int number = Journal.number(segment);
+
+				if (number >= from[0]) {
+					replay(segment, (number == from[0]) ? from[1] : 0, out, totals);
+				}
+			}
+		}
+
+		out.flush();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("<%d records, %d bytes in %.3f s, %.0f records/s>%n", totals[0], totals[1], seconds, totals[0] / seconds);
+	}
+
+	/**
+	 * writes every record of segment from offset on to out
+	 */
+	private static void replay(File segment, int offset, OutputStream out, long[] totals) throws IOException {
+		FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+		Command command = new Command();
+		byte[] room = new byte[0xffff];
+
+		try {
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int first = offset;
+
+			while (offset + 8 <= records.limit() && records.getLong(offset) != 0) {
+				int roomLength = records.getShort(offset + 8) & 0xffff;
+				int frame = offset + 8 + 2 + roomLength;
+				int length = records.getInt(frame);
+
+				records.get(offset + 8 + 2, room, 0, roomLength);
+				records.get(frame + 4, command.buffer(length), 0, length);
+				command.parse(command.buffer(length), 0, length);
+
+				out.write(room, 0, roomLength);
+				out.write('\t');
+				Frame.from(command).writeTo(out, WireFormat.TEXT);
+
+				totals[0]++;
+				offset = frame + 4 + length;
+			}
+
+			totals[1] += offset - first;
+		}
+
+		finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * When a client was last heard from, when a ping last reached it and how
+ * long writing to it has been stuck, in Reaper ticks. The session updates it as it reads and writes
+ * and the reaper only looks at it, so a busy client costs at most one
+ * store a tick and nothing is ever rescheduled per message.
+ */
+
+public final class Liveness {
+
+	private volatile long lastRead = Server2.reaper.now();
+	// the tick writing to the client stopped going anywhere, -1 while it isn't stuck
+	private volatile long stalledSince = -1;
+	// the tick the first ping since the client was last heard from was written
+	private volatile long pingWritten = -1;
+	// false until the client shows it knows 19 and 20, only then is it dropped for being quiet
+	private volatile boolean answersPings = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * the client sent a command
+	 */
+	void read() {
+		long now = Server2.reaper.now();
+
+		if (lastRead != now)
+			lastRead = now;
+	}
+
+	/**
+	 * a 19 went out to the client, the time it has to answer starts now
+	 * unless an earlier one is still unanswered
+	 */
+	void pinged() {
+		if (pingWritten <= lastRead)
+			pingWritten = Server2.reaper.now();
+	}
+
+	/**
+	 * the client is binary, keeps presence versions or sent a 20, so it
+	 * answers pings
+	 */
+	void answersPings() {
+		if (!answersPings)
+			answersPings = true;
+	}
+
+	/**
+	 * a write is waiting on the client, the clock starts unless it is
+	 * already running
+	 */
+	void writing() {
+		if (stalledSince < 0)
+			stalledSince = Server2.reaper.now();
+	}
+
+	/**
+	 * the client took some bytes
+	 */
+	void wrote() {
+		if (stalledSince >= 0)
+			stalledSince = -1;
+	}
+
+	/**
+	 * the connection is closed, the reaper forgets the session
+	 */
+	void closed() {
+		closed = true;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	long lastRead() {
+		return lastRead;
+	}
+
+	long stalledSince() {
+		return stalledSince;
+	}
+
+	long pingWritten() {
+		return pingWritten;
+	}
+
+	boolean isAnsweringPings() {
+		return answersPings;
+	}
+}
@@ -0,0 +1,570 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Headless load against a running server. Opens many clients over
+ * loopback, does the 0 / 1 handshake for each (asking for presence
+ * versions, as ChatConnection does), then sends public (3) and
+ * private (4) messages from random clients at a fixed total rate and
+ * times how long every 5 and 6 takes to come back to each client that
+ * gets it.
+ *
+ * Usage:
+ *	java LoadGenerator [host]
+ *
+ *	-Dload.clients		clients to connect (default 1000)
+ *	-Dload.rate		messages sent per second, all clients together (default 1000)
+ *	-Dload.whispers		fraction of the messages that are private (default 0.1)
+ *	-Dload.size		bytes in each message body (default 64)
+ *	-Dload.rooms		spread the clients over this many rooms, 0 keeps them all in the lobby (default 0)
+ *	-Dload.seconds		how long to send for (default 30)
+ *	-Dload.warmupSeconds	sent at the start but not counted (default 5)
+ *	-Dload.readers		threads reading replies (default one per core)
+ *	-Dload.port		(default 1337)
+ *	-Dload.prefix		client names are this and a number, give each
+ *				generator run against one server its own (default load)
+ *	-Dload.storm		connect every client at once instead of one after
+ *				another, the way they all come back after a restart
+ *				(default false)
+ *
+ * Every message carries the time it was due to be sent, not the time it
+ * went out, so a sender that falls behind shows up as latency instead of
+ * hiding it. Raise the open file limit (ulimit -n) above load.clients.
+ *
+ * How long it took from the first connect until every client was
+ * accepted is reported as joins a second. -Dload.seconds=0 stops there.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+public class LoadGenerator {
+
+	private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+	private static final int RATE = Integer.getInteger("load.rate", 1000);
+	private static final double WHISPERS = Double.parseDouble(System.getProperty("load.whispers", "0.1"));
+	private static final int SIZE = Integer.getInteger("load.size", 64);
+	private static final int ROOMS = Integer.getInteger("load.rooms", 0);
+	private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+	private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+	private static final int READERS = Integer.getInteger("load.readers", Runtime.getRuntime().availableProcessors());
+	private static final int PORT = Integer.getInteger("load.port", 1337);
+	private static final String PREFIX = System.getProperty("load.prefix", "load");
+	private static final boolean STORM = Boolean.getBoolean("load.storm");
+
+	// tells this run's messages from anything a room kept from an earlier one
+	private static final String RUN = Long.toString(System.nanoTime() & 0xffffff, 36);
+
+	private static final AtomicInteger accepted = new AtomicInteger();
+	// System.nanoTime() of the first connect and of the last 1
+	private static long connectStart;
+	private static volatile long lastAccepted;
+	private static final AtomicInteger inRoom = new AtomicInteger();
+	private static final AtomicInteger connectErrors = new AtomicInteger();
+	private static final AtomicInteger handshakeErrors = new AtomicInteger();
+	private static final AtomicInteger disconnects = new AtomicInteger();
+	private static final AtomicLong sentPublic = new AtomicLong();
+	private static final AtomicLong sentPrivate = new AtomicLong();
+	private static final AtomicLong expectedPublic = new AtomicLong();
+
+	// messages due before this are warmup
+	private static volatile long measureFrom = Long.MAX_VALUE;
+
+	public static void main(String[] args) throws Exception {
+		String host = (args.length > 0) ? args[0] : "127.0.0.1";
+
+		Reader[] readers = new Reader[Math.max(1, READERS)];
+
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Reader();
+			Thread thread = new Thread(readers[i], "reader-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		Client[] clients = connect(host, readers);
+		int[] roomSizes = joinRooms(clients);
+
+		System.err.println("<" + accepted.get() + " of " + CLIENTS + " clients joined, sending " + RATE + " messages/s for "
+				+ SECONDS + " s>");
+
+		send(clients, roomSizes);
+
+		// whatever is still on its way gets a moment to arrive
+		Thread.sleep(2000);
+
+		report(readers);
+		System.exit(0);
+	}
+
+	/**
+	 * opens every client and sends its 0, the readers see the replies
+	 */
+	private static Client[] connect(String host, Reader[] readers) throws InterruptedException {
+		Client[] clients = new Client[CLIENTS];
+		InetSocketAddress address = new InetSocketAddress(host, PORT);
+		connectStart = System.nanoTime();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			clients[i] = new Client(i);
+
+			try {
+				SocketChannel channel;
+
+				// a storm leaves finishing the connect and sending the 0 to the reader
+				if (STORM) {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					channel.connect(address);
+					clients[i].channel = channel;
+				}
+
+				else {
+					channel = SocketChannel.open(address);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					clients[i].channel = channel;
+					clients[i].write("0 " + clients[i].name + " 0\r\n");
+					channel.configureBlocking(false);
+				}
+
+				readers[i % readers.length].add(clients[i]);
+			}
+			catch (IOException e) {
+				connectErrors.incrementAndGet();
+			}
+		}
+
+		waitFor(() -> accepted.get() + handshakeErrors.get() + connectErrors.get() >= CLIENTS,
+				() -> accepted.get() + handshakeErrors.get() + connectErrors.get());
+		return clients;
+	}
+
+	/**
+	 * moves client i to room i % ROOMS, returns how many clients ended up in each room
+	 */
+	private static int[] joinRooms(Client[] clients) throws InterruptedException {
+		int[] sizes = new int[Math.max(1, ROOMS)];
+
+		for (Client client : clients) {
+			if (!client.joined) {
+				continue;
+			}
+
+			client.room = client.id % sizes.length;
+			sizes[client.room]++;
+
+			if (ROOMS > 0 && !client.write("11 load" + client.room + "\r\n")) {
+				sizes[client.room]--;
+			}
+		}
+
+		if (ROOMS > 0) {
+			int joined = accepted.get();
+			waitFor(() -> inRoom.get() >= joined, () -> inRoom.get());
+		}
+
+		return sizes;
+	}
+
+	/**
+	 * waits for done, giving up once progress has not moved for 30 s
+	 */
+	private static void waitFor(BooleanSupplier done, IntSupplier progress) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+		int last = progress.getAsInt();
+
+		while (!done.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+
+			if (progress.getAsInt() != last) {
+				last = progress.getAsInt();
+				deadline = System.currentTimeMillis() + 30000;
+			}
+		}
+	}
+
+	/**
+	 * sends RATE messages a second for SECONDS, catching up in a burst
+	 * when it wakes late
+	 */
+	private static void send(Client[] clients, int[] roomSizes) {
+		ArrayList<Client> live = new ArrayList<Client>();
+
+		for (Client client : clients) {
+			if (client.joined)
+				live.add(client);
+		}
+
+		if (live.size() < 2) {
+			System.err.println("<not enough clients joined to send anything>");
+			return;
+		}
+
+		SplittableRandom random = new SplittableRandom();
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < SIZE)
+			padding.append('x');
+
+		long interval = 1000000000L / Math.max(1, RATE);
+		long start = System.nanoTime();
+		long end = start + SECONDS * 1000000000L;
+		long due = start;
+		long lastProgress = start;
+		measureFrom = start + WARMUP_SECONDS * 1000000000L;
+
+		StringBuilder line = new StringBuilder();
+
+		while (due < end) {
+			long now = System.nanoTime();
+
+			if (now < due) {
+				LockSupport.parkNanos(Math.min(due - now, 1000000));
+				continue;
+			}
+
+			Client from = live.get(random.nextInt(live.size()));
+			line.setLength(0);
+
+			if (random.nextDouble() < WHISPERS) {
+				Client to = live.get(random.nextInt(live.size()));
+				line.append("4 ").append(from.name).append(' ').append(to.name).append(' ');
+				stamp(line, due, padding);
+
+				if (from.write(line.toString()) && due >= measureFrom)
+					sentPrivate.incrementAndGet();
+			}
+
+			else {
+				line.append('3');
+				stamp(line, due, padding);
+
+				if (from.write(line.toString()) && due >= measureFrom) {
+					sentPublic.incrementAndGet();
+					expectedPublic.addAndGet(roomSizes[from.room]);
+				}
+			}
+
+			due += interval;
+
+			if (now - lastProgress >= 5000000000L) {
+				lastProgress = now;
+				System.err.println("<" + (now - start) / 1000000000L + " s, " + (sentPublic.get() + sentPrivate.get()) + " counted sent, "
+						+ disconnects.get() + " disconnects>");
+			}
+		}
+	}
+
+	/**
+	 * the body of a message, this run, the time it was due and padding up to SIZE
+	 */
+	private static void stamp(StringBuilder line, long due, CharSequence padding) {
+		int bodyStart = line.length();
+		line.append('@').append(RUN).append(' ').append(due).append(' ');
+		int used = line.length() - bodyStart;
+
+		if (used < SIZE)
+			line.append(padding, 0, SIZE - used);
+
+		line.append("\r\n");
+	}
+
+	private static void report(Reader[] readers) {
+		Histogram publicLatency = new Histogram();
+		Histogram privateLatency = new Histogram();
+		long publicReceived = 0;
+		long privateReceived = 0;
+
+		for (Reader reader : readers) {
+			publicLatency.add(reader.publicLatency);
+			privateLatency.add(reader.privateLatency);
+		}
+
+		publicReceived = publicLatency.count();
+		privateReceived = privateLatency.count();
+
+		double seconds = Math.max(1, SECONDS - WARMUP_SECONDS);
+
+		System.out.println("clients\t" + CLIENTS + " (" + accepted.get() + " joined, " + connectErrors.get() + " connect errors, "
+				+ handshakeErrors.get() + " refused, " + disconnects.get() + " disconnects)");
+		double connectSeconds = Math.max(1, lastAccepted - connectStart) / 1e9;
+		System.out.printf("joins\t%d %s in %.3f s, %.0f joins/s%n", accepted.get(), STORM ? "at once" : "one after another",
+				connectSeconds, accepted.get() / connectSeconds);
+		System.out.printf("sent\t%d public, %d private in %.0f s, %.0f messages/s%n", sentPublic.get(), sentPrivate.get(), seconds,
+				(sentPublic.get() + sentPrivate.get()) / seconds);
+		System.out.printf("received\t%d of %d public deliveries, %d of %d private, %.0f deliveries/s%n", publicReceived,
+				expectedPublic.get(), privateReceived, sentPrivate.get(), (publicReceived + privateReceived) / seconds);
+		System.out.println("latency ms\tp50\tp99\tp999\tmax\tmean");
+		System.out.println(latencyLine("public (5)", publicLatency));
+		System.out.println(latencyLine("private (6)", privateLatency));
+	}
+
+	private static String latencyLine(String label, Histogram latency) {
+		return String.format("%s\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f", label, latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+				latency.percentile(99.9) / 1e6, latency.max() / 1e6, latency.mean() / 1e6);
+	}
+
+	/**
+	 * one connection and what has been read from it so far
+	 */
+	private static final class Client {
+
+		final int id;
+		final String name;
+		SocketChannel channel = null;
+		volatile boolean joined = false;
+		int room = 0;
+		final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		// the rest of a line too long for in is thrown away
+		boolean skipping = false;
+
+		Client(int id) {
+			this.id = id;
+			this.name = PREFIX + id;
+		}
+
+		/**
+		 * writes the whole line, spinning while the socket is full, false if
+		 * the connection is gone. The sender and the reader's pongs take turns.
+		 */
+		synchronized boolean write(String line) {
+			ByteBuffer out = ByteBuffer.wrap(line.getBytes(StandardCharsets.ISO_8859_1));
+
+			try {
+				while (out.hasRemaining()) {
+					if (channel.write(out) == 0)
+						Thread.yield();
+				}
+
+				return true;
+			}
+			catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * reads replies for its share of the clients and records the latency
+	 * of every 5 and 6 from this run
+	 */
+	private static final class Reader implements Runnable {
+
+		private final Selector selector;
+		private final ArrayList<Client> added = new ArrayList<Client>();
+		final Histogram publicLatency = new Histogram();
+		final Histogram privateLatency = new Histogram();
+
+		Reader() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(Client client) {
+			synchronized (added) {
+				added.add(client);
+			}
+
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					selector.select(100);
+
+					synchronized (added) {
+						for (Client client : added) {
+							int ops = client.channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+							client.channel.register(selector, ops, client);
+						}
+						added.clear();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						if (key.isConnectable())
+							connected((Client) key.attachment(), key);
+						else
+							read((Client) key.attachment(), key);
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println("<reader stopped: " + e + ">");
+			}
+		}
+
+		/**
+		 * a storm client's connect went through, or didn't
+		 */
+		private void connected(Client client, SelectionKey key) {
+			try {
+				client.channel.finishConnect();
+			}
+			catch (IOException e) {
+				connectErrors.incrementAndGet();
+				key.cancel();
+				return;
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+			client.write("0 " + client.name + " 0\r\n");
+		}
+
+		private void read(Client client, SelectionKey key) {
+			int count;
+
+			try {
+				count = client.channel.read(client.in);
+			}
+			catch (IOException e) {
+				count = -1;
+			}
+
+			if (count < 0) {
+				if (client.joined)
+					disconnects.incrementAndGet();
+				else
+					handshakeErrors.incrementAndGet();
+
+				key.cancel();
+				return;
+			}
+
+			ByteBuffer in = client.in;
+			byte[] bytes = in.array();
+			int start = 0;
+			int end = in.position();
+			long now = System.nanoTime();
+
+			for (int i = 0; i < end; i++) {
+				if (bytes[i] == '\n') {
+					if (!client.skipping)
+						line(client, bytes, start, i, now);
+
+					client.skipping = false;
+					start = i + 1;
+				}
+			}
+
+			// a big user list, only its front is needed
+			if (start == 0 && end == in.capacity()) {
+				if (!client.skipping)
+					line(client, bytes, 0, end, now);
+
+				client.skipping = true;
+				start = end;
+			}
+
+			// keep the partial line at the front
+			in.limit(end).position(start);
+			in.compact();
+		}
+
+		/**
+		 * one line from the server, bytes from start up to the \n at end
+		 */
+		private void line(Client client, byte[] bytes, int start, int end, long now) {
+			int command = 0;
+			int i = start;
+
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9')
+				command = command * 10 + bytes[i++] - '0';
+
+			switch (command) {
+				case Frame.ACCEPTED:
+					if (!client.joined) {
+						client.joined = true;
+						lastAccepted = now;
+						accepted.incrementAndGet();
+					}
+					break;
+
+				case Frame.NAME_TAKEN:
+					handshakeErrors.incrementAndGet();
+					break;
+
+				case Frame.ROOM_JOINED:
+					inRoom.incrementAndGet();
+					break;
+
+				// or the server drops a client that only listens once it goes idle
+				case Frame.PING:
+					client.write(Frame.PONG + "\n");
+					break;
+
+				// 5 user time body, 6 from to time body
+				case Frame.PUBLIC_MESSAGE:
+					record(publicLatency, bytes, skip(bytes, i, end, 3), end, now);
+					break;
+
+				case Frame.PRIVATE_MESSAGE:
+					record(privateLatency, bytes, skip(bytes, i, end, 4), end, now);
+					break;
+			}
+		}
+
+		/**
+		 * the offset just past the count'th space from i, end if there are fewer
+		 */
+		private static int skip(byte[] bytes, int i, int end, int count) {
+			while (i < end && count > 0) {
+				if (bytes[i++] == ' ')
+					count--;
+			}
+
+			return i;
+		}
+
+		/**
+		 * reads "@run due " from the body and records now - due, if the
+		 * message is from this run and not warmup
+		 */
+		private static void record(Histogram latency, byte[] bytes, int i, int end, long now) {
+			if (i >= end || bytes[i++] != '@') {
+				return;
+			}
+
+			for (int r = 0; r < RUN.length(); r++) {
+				if (i >= end || bytes[i++] != RUN.charAt(r))
+					return;
+			}
+
+			if (i >= end || bytes[i++] != ' ') {
+				return;
+			}
+
+			long due = 0;
+			boolean negative = (i < end && bytes[i] == '-');
+
+			if (negative)
+				i++;
+
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9')
+				due = due * 10 + bytes[i++] - '0';
+
+			if (negative)
+				due = -due;
+
+			if (due >= measureFrom) {
+				latency.record(now - due);
+			}
+		}
+	}
+}
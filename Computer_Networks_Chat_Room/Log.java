@@ -0,0 +1,273 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The server's log. A call only checks the level and copies its event
+ * name and up to two key / value pairs into a slot of a ring made up
+ * front, one log thread turns the slots into lines and writes them. The
+ * values are whatever the caller already had, a name or a Frame, and
+ * are only turned into text on the log thread, so logging builds no
+ * strings where the messages are handled. When the ring is full the
+ * entry is dropped and counted, a caller never waits on the console or
+ * the disk.
+ *
+ *	-Dchat.log.level	error, warn, info (default), debug or trace
+ *	-Dchat.log.sample	keep 1 in this many debug and trace entries (default 1)
+ *	-Dchat.log.file		append to this file instead of the console
+ *	-Dchat.log.bufferSize	slots in the ring, rounded up to a power of two (default 8192)
+ *
+ * Lines look like
+ *	2016-04-20T12:00:00.123Z INFO joined user=alice
+ *
+ * Nothing per message is logged above debug, trace has every frame sent
+ * to every client.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Log implements Runnable {
+
+	public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+	// how long the log thread sleeps when there is nothing to write
+	private static final long IDLE_NANOS = 10000000L;
+
+	private static final Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "info").toUpperCase());
+	private static final int SAMPLE = Math.max(1, Integer.getInteger("chat.log.sample", 1));
+	private static final Log log = new Log(Integer.getInteger("chat.log.bufferSize", 8192), System.getProperty("chat.log.file"));
+
+	private final Entry[] slots;
+	private final int mask;
+	// slot i is free for the writer at position p when sequence[i] == p, and
+	// ready for the log thread when it is p + 1
+	private final AtomicLongArray sequence;
+	private final AtomicLong tail = new AtomicLong(0);
+	private long head = 0;
+	private final LongAdder dropped = new LongAdder();
+	private long droppedReported = 0;
+	private final Writer file;
+	private final StringBuilder line = new StringBuilder();
+
+	private Log(int size, String fileName) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+
+		slots = new Entry[capacity];
+		mask = capacity - 1;
+		sequence = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Entry();
+			sequence.set(i, i);
+		}
+
+		Writer opened = null;
+
+		if (fileName != null) {
+			try {
+				opened = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8));
+			}
+			catch (IOException e) {
+				System.err.println("<can't open log file " + fileName + ", logging to the console: " + e + ">");
+			}
+		}
+
+		file = opened;
+
+		Thread thread = new Thread(this, "log");
+		thread.setDaemon(true);
+		thread.start();
+
+		// whatever is still in the ring goes out before the JVM does
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				long deadline = System.nanoTime() + 1000000000L;
+
+				while (log.pending() && System.nanoTime() < deadline)
+					LockSupport.parkNanos(1000000L);
+			}
+		}, "log-drain"));
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) <= 0;
+	}
+
+	public static void error(String event, String key, Object value) {
+		log.add(Level.ERROR, event, key, value, null, null);
+	}
+
+	public static void warn(String event, String key, Object value) {
+		log.add(Level.WARN, event, key, value, null, null);
+	}
+
+	public static void warn(String event, String key1, Object value1, String key2, Object value2) {
+		log.add(Level.WARN, event, key1, value1, key2, value2);
+	}
+
+	public static void info(String event, String key, Object value) {
+		log.add(Level.INFO, event, key, value, null, null);
+	}
+
+	public static void info(String event, String key1, Object value1, String key2, Object value2) {
+		log.add(Level.INFO, event, key1, value1, key2, value2);
+	}
+
+	public static void debug(String event, String key1, Object value1, String key2, Object value2) {
+		if (isEnabled(Level.DEBUG) && sampled())
+			log.add(Level.DEBUG, event, key1, value1, key2, value2);
+	}
+
+	public static void trace(String event, String key1, Object value1, String key2, Object value2) {
+		if (isEnabled(Level.TRACE) && sampled())
+			log.add(Level.TRACE, event, key1, value1, key2, value2);
+	}
+
+	private static boolean sampled() {
+		return SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0;
+	}
+
+	/**
+	 * claims the next slot and fills it in, drops the entry if the ring is full
+	 */
+	private void add(Level level, String event, String key1, Object value1, String key2, Object value2) {
+		if (!isEnabled(level)) {
+			return;
+		}
+
+		long position;
+		Entry entry;
+
+		while (true) {
+			position = tail.get();
+			int index = (int) position & mask;
+			long available = sequence.get(index);
+
+			if (available == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					entry = slots[index];
+					break;
+				}
+			}
+
+			// the log thread has not written the entry a lap ago yet
+			else if (available < position) {
+				dropped.increment();
+				return;
+			}
+		}
+
+		entry.millis = System.currentTimeMillis();
+		entry.level = level;
+		entry.event = event;
+		entry.key1 = key1;
+		entry.value1 = value1;
+		entry.key2 = key2;
+		entry.value2 = value2;
+
+		// publishes the fields to the log thread
+		sequence.set((int) position & mask, position + 1);
+	}
+
+	private boolean pending() {
+		return sequence.get((int) head & mask) == head + 1;
+	}
+
+	/**
+	 * the log thread, writes every ready slot and frees it, flushes once
+	 * the ring is empty
+	 */
+	public void run() {
+		while (true) {
+			try {
+				if (!pending()) {
+					flush();
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+
+				int index = (int) head & mask;
+				Entry entry = slots[index];
+				format(entry);
+
+				// let go of the caller's objects before handing the slot back
+				entry.value1 = null;
+				entry.value2 = null;
+				sequence.set(index, head + slots.length);
+				head++;
+
+				write(entry.level);
+			}
+
+			catch (IOException e) {
+				System.err.println("<log write failed: " + e + ">");
+			}
+		}
+	}
+
+	private void format(Entry entry) {
+		line.setLength(0);
+		line.append(Instant.ofEpochMilli(entry.millis)).append(' ').append(entry.level).append(' ').append(entry.event);
+
+		if (entry.key1 != null)
+			line.append(' ').append(entry.key1).append('=').append(text(entry.value1));
+		if (entry.key2 != null)
+			line.append(' ').append(entry.key2).append('=').append(text(entry.value2));
+
+		line.append('\n');
+	}
+
+	/**
+	 * frames print as their text protocol line, without the line end
+	 */
+	private static String text(Object value) {
+		return (value instanceof Frame) ? value.toString().trim() : String.valueOf(value);
+	}
+
+	private void write(Level level) throws IOException {
+		if (file != null) {
+			file.append(line);
+		}
+
+		else if (level.compareTo(Level.WARN) <= 0) {
+			System.err.print(line);
+		}
+
+		else {
+			System.out.print(line);
+		}
+	}
+
+	private void flush() throws IOException {
+		long lost = dropped.sum();
+
+		if (lost > droppedReported) {
+			line.setLength(0);
+			line.append(Instant.now()).append(" WARN log_full dropped=").append(lost - droppedReported).append('\n');
+			droppedReported = lost;
+			write(Level.WARN);
+		}
+
+		if (file != null) {
+			file.flush();
+		}
+	}
+
+	private static final class Entry {
+
+		long millis;
+		Level level;
+		String event;
+		String key1;
+		Object value1;
+		String key2;
+		Object value2;
+	}
+}
@@ -0,0 +1,478 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Private messages for users who are not online, kept until they join
+ * again and then sent to them in one write right after the accepted
+ * reply. The sender is told what happened with a 23 either way.
+ *
+ * Only names that have been on the server get a mailbox, so a client
+ * can't use up every mailbox whispering to made up names. A message for
+ * anyone else is answered "unknown" and not kept. The last
+ * -Dchat.mailbox.known (default 65536) names to register are remembered,
+ * and the names of mailboxes recovered from disk.
+ *
+ * A user's mailbox holds at most -Dchat.mailbox.messages (default 1000)
+ * messages and at most -Dchat.mailbox.users (default 1024) users have
+ * one, a message past either is answered "full" and not kept. With
+ * -Dchat.mailbox.dir set a mailbox only keeps the last
+ * -Dchat.mailbox.memory (default 32) in memory, each time that many
+ * have come in they are appended to the user's file in that directory in
+ * one write, in the binary protocol. Files left over from before a
+ * restart are delivered too, what was still in memory is lost. Without
+ * a directory everything stays in memory.
+ *
+ * The files are only ever touched by one mailbox thread, so neither a
+ * sender nor an event loop waits on the disk. A spill is handed to it,
+ * and a mailbox with a file is read there when its user joins. The file
+ * is deleted once the reply carrying it has been written. If that write
+ * fails the mailbox is put back, file and all.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Mailboxes {
+
+	// what the 23 to the sender says
+	public static final String DELIVERED = "delivered";
+	public static final String STORED = "stored";
+	public static final String FULL = "full";
+	public static final String UNKNOWN = "unknown";
+
+	private static final String SUFFIX = ".mbox";
+
+	private final ConcurrentHashMap<String, Mailbox> boxes = new ConcurrentHashMap<String, Mailbox>();
+	private final AtomicInteger count = new AtomicInteger(0);
+	private final File dir;
+	private final int maxUsers;
+	private final int maxMessages;
+	private final int memoryMessages;
+	// the mailbox thread, every file operation runs on it in order, null without a directory
+	private final Executor io;
+	// names that have registered, least recently first, touched under its own lock
+	private final LinkedHashMap<String, Boolean> known;
+
+	/**
+	 * dir is where mailboxes spill to, null to keep them in memory
+	 */
+	public Mailboxes(File dir, int maxUsers, int maxMessages, int memoryMessages, final int maxKnown) {
+		this.dir = dir;
+		this.maxUsers = maxUsers;
+		this.maxMessages = maxMessages;
+		this.memoryMessages = Math.max(1, memoryMessages);
+		this.known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxKnown;
+			}
+		};
+
+		if (dir != null) {
+			dir.mkdirs();
+			recover();
+			io = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "mailbox-io");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		else {
+			io = null;
+		}
+	}
+
+	public static Mailboxes fromProperties() {
+		String dir = System.getProperty("chat.mailbox.dir");
+
+		return new Mailboxes((dir != null) ? new File(dir) : null,
+				Integer.getInteger("chat.mailbox.users", 1024),
+				Integer.getInteger("chat.mailbox.messages", 1000),
+				Integer.getInteger("chat.mailbox.memory", 32),
+				Integer.getInteger("chat.mailbox.known", 65536));
+	}
+
+	/**
+	 * keeps message for to, who was not online when it was sent. Returns
+	 * DELIVERED if to got online in the meantime and was sent it after
+	 * all, STORED, FULL, or UNKNOWN if nobody called to has been here.
+	 */
+	public String store(String to, Frame message) {
+		while (true) {
+			Mailbox box = boxes.get(to);
+
+			if (box == null) {
+				if (!isKnown(to)) {
+					Metrics.mailboxUnknown();
+					return UNKNOWN;
+				}
+
+				if (count.incrementAndGet() > maxUsers) {
+					count.decrementAndGet();
+					Metrics.mailboxFull();
+					return FULL;
+				}
+
+				box = new Mailbox(to);
+				Mailbox raced = boxes.putIfAbsent(to, box);
+
+				if (raced != null) {
+					count.decrementAndGet();
+					box = raced;
+				}
+			}
+
+			synchronized (box) {
+				// taken by a join just now, that user is online
+				if (box.taken) {
+					continue;
+				}
+
+				// registered but the mailbox not taken yet, what is sent now is
+				// queued behind the accepted reply the mailbox goes out with
+				Session session = Server2.sessions.get(to);
+
+				if (session != null) {
+					if (box.isEmpty())
+						retire(box);
+
+					session.send(message);
+					return DELIVERED;
+				}
+
+				if (!box.add(message)) {
+					Metrics.mailboxFull();
+					return FULL;
+				}
+
+				return STORED;
+			}
+		}
+	}
+
+	/**
+	 * name's mailbox, which from now on is only name's, null if nothing
+	 * is kept for it. Called once name is registered, so nothing is kept
+	 * for it after this. What is in it is read with read() and the
+	 * mailbox finished with delivered() or putBack().
+	 */
+	public Mailbox take(String name) {
+		remember(name);
+
+		Mailbox box = boxes.get(name);
+
+		if (box == null) {
+			return null;
+		}
+
+		synchronized (box) {
+			if (box.taken) {
+				return null;
+			}
+
+			retire(box);
+			return box.isEmpty() ? null : box;
+		}
+	}
+
+	/**
+	 * how many users have messages waiting
+	 */
+	public int size() {
+		return count.get();
+	}
+
+	private void remember(String name) {
+		synchronized (known) {
+			known.put(name, Boolean.TRUE);
+		}
+	}
+
+	private boolean isKnown(String name) {
+		synchronized (known) {
+			return known.containsKey(name);
+		}
+	}
+
+	/**
+	 * under the box's lock, nothing more goes in it
+	 */
+	private void retire(Mailbox box) {
+		box.taken = true;
+
+		if (boxes.remove(box.name, box))
+			count.decrementAndGet();
+	}
+
+	/**
+	 * the user's file, the name in hex so any name makes a file name
+	 */
+	private File file(String name) {
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : name.getBytes(StandardCharsets.UTF_8))
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+		return new File(dir, hex.append(SUFFIX).toString());
+	}
+
+	/**
+	 * a mailbox for every file left in the directory
+	 */
+	private void recover() {
+		File[] files = dir.listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String hex = file.getName();
+
+			if (!hex.endsWith(SUFFIX) || (hex.length() - SUFFIX.length()) % 2 != 0) {
+				continue;
+			}
+
+			try {
+				byte[] name = new byte[(hex.length() - SUFFIX.length()) / 2];
+
+				for (int i = 0; i < name.length; i++)
+					name[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+
+				Mailbox box = new Mailbox(new String(name, StandardCharsets.UTF_8));
+				box.spilled = count(Files.readAllBytes(file.toPath()));
+
+				if (box.spilled > 0 && boxes.putIfAbsent(box.name, box) == null) {
+					count.incrementAndGet();
+					remember(box.name);
+				}
+			}
+
+			catch (IOException | NumberFormatException e) {
+				Log.warn("mailbox_recover_failed", "file", file, "error", e);
+			}
+		}
+	}
+
+	/**
+	 * the frames in a spilled file
+	 */
+	private static int count(byte[] spilled) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(spilled);
+		Command command = new Command();
+		int frames = 0;
+
+		while (BinaryProtocol.decode(in, command))
+			frames++;
+
+		return frames;
+	}
+
+	/**
+	 * one user's messages, only touched under its own lock, and its file
+	 * only on the mailbox thread
+	 */
+	public final class Mailbox {
+
+		final String name;
+		// the newest messages, the older ones are in the file
+		final ArrayList<Frame> memory = new ArrayList<Frame>();
+		int spilled = 0;
+		boolean taken = false;
+
+		Mailbox(String name) {
+			this.name = name;
+		}
+
+		boolean isEmpty() {
+			return memory.isEmpty() && spilled == 0;
+		}
+
+		/**
+		 * false if the mailbox is full
+		 */
+		boolean add(Frame message) {
+			if (memory.size() + spilled >= maxMessages) {
+				return false;
+			}
+
+			memory.add(message);
+			Metrics.mailboxStored();
+
+			if (dir != null && memory.size() >= memoryMessages)
+				spill();
+
+			return true;
+		}
+
+		/**
+		 * hands what is in memory to the mailbox thread to append to the
+		 * file in one write. It counts as spilled from now on, a read
+		 * comes after the append on the same thread.
+		 */
+		private void spill() {
+			final ArrayList<Frame> batch = new ArrayList<Frame>(memory);
+
+			spilled += batch.size();
+			memory.clear();
+
+			io.execute(() -> append(batch));
+		}
+
+		/**
+		 * on the mailbox thread, on failure the batch goes back in memory,
+		 * which maxMessages still bounds
+		 */
+		private void append(ArrayList<Frame> batch) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+			try {
+				for (Frame message : batch)
+					message.writeTo(bytes, WireFormat.BINARY);
+
+				try (FileOutputStream out = new FileOutputStream(file(name), true)) {
+					bytes.writeTo(out);
+				}
+
+				Metrics.mailboxSpilled(batch.size());
+			}
+
+			catch (IOException e) {
+				Log.warn("mailbox_spill_failed", "user", name, "error", e);
+
+				synchronized (this) {
+					spilled -= batch.size();
+					memory.addAll(0, batch);
+				}
+			}
+		}
+
+		/**
+		 * everything in the mailbox, oldest first and encoded in format.
+		 * Done at once if it is all in memory, on the mailbox thread if
+		 * there is a file.
+		 */
+		public CompletableFuture<byte[]> read(final WireFormat format) {
+			synchronized (this) {
+				if (spilled == 0) {
+					return CompletableFuture.completedFuture(encode(format, new byte[0]));
+				}
+			}
+
+			return CompletableFuture.supplyAsync(() -> {
+				byte[] spilled = new byte[0];
+
+				try {
+					// not there if every append failed
+					if (file(name).exists())
+						spilled = Files.readAllBytes(file(name).toPath());
+				}
+
+				catch (IOException e) {
+					Log.warn("mailbox_read_failed", "user", name, "error", e);
+				}
+
+				return encode(format, spilled);
+			}, io);
+		}
+
+		/**
+		 * the file's bytes, which are in the binary protocol already, and
+		 * then what is in memory
+		 */
+		private synchronized byte[] encode(WireFormat format, byte[] spilled) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			try {
+				if (format == WireFormat.BINARY) {
+					out.write(spilled);
+				}
+
+				else {
+					ByteBuffer in = ByteBuffer.wrap(spilled);
+					Command command = new Command();
+
+					while (BinaryProtocol.decode(in, command))
+						Frame.from(command).writeTo(out, format);
+				}
+
+				for (Frame message : memory)
+					message.writeTo(out, format);
+			}
+
+			catch (IOException e) {
+				// a ByteArrayOutputStream doesn't throw
+			}
+
+			return out.toByteArray();
+		}
+
+		/**
+		 * the reply carrying the mailbox was written, the file can go
+		 */
+		public void delivered() {
+			int frames;
+
+			synchronized (this) {
+				frames = memory.size() + spilled;
+			}
+
+			if (io != null) {
+				io.execute(() -> file(name).delete());
+			}
+
+			Metrics.mailboxDelivered(frames);
+			Log.debug("mailbox_delivered", "user", name, "messages", frames);
+		}
+
+		/**
+		 * the reply never made it, everything goes back to be delivered
+		 * next time. What was stored in the meantime stays behind it,
+		 * apart from messages it had spilled, which are in the file after
+		 * the old ones.
+		 */
+		public void putBack() {
+			while (true) {
+				Mailbox box = boxes.get(name);
+
+				if (box == null) {
+					box = new Mailbox(name);
+					Mailbox raced = boxes.putIfAbsent(name, box);
+
+					if (raced != null) {
+						box = raced;
+					}
+
+					else {
+						count.incrementAndGet();
+					}
+				}
+
+				synchronized (box) {
+					if (box.taken) {
+						continue;
+					}
+
+					synchronized (this) {
+						box.memory.addAll(0, memory);
+						box.spilled += spilled;
+					}
+
+					Log.debug("mailbox_kept", "user", name, "messages", memory.size() + spilled);
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,488 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What the server is doing, for both server modes. Every counter is a
+ * LongAdder and every latency a Histogram, so recording on the message
+ * path never locks or allocates, the work of adding things up is left to
+ * whoever reads them.
+ *
+ * The numbers can be read over JMX (chat:type=Metrics, jconsole shows
+ * them) and, with -Dchat.admin.port, as plain text from a port that only
+ * listens on localhost:
+ *
+ *	nc localhost 1338
+ *
+ * Latency is from the moment a public or private message is built in
+ * Handler to the moment the write that carried it to a client returned,
+ * for every client it went to. What a newcomer is sent from the
+ * scrollback was said before it came, so it is counted but not timed.
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class Metrics implements MetricsMBean {
+
+	// one counter per command number, anything else goes in the last one
+	private static final int COMMANDS = Frame.RECEIPT + 2;
+	// most clients the admin report lists by backlog
+	private static final int REPORT_CLIENTS = 20;
+
+	private static final LongAdder[] received = adders(COMMANDS);
+	private static final LongAdder[] written = adders(COMMANDS);
+	private static final LongAdder broadcastQueued = new LongAdder();
+	private static final LongAdder joined = new LongAdder();
+	private static final LongAdder left = new LongAdder();
+	private static final LongAdder evicted = new LongAdder();
+	private static final LongAdder timedOut = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+	private static final LongAdder rejected = new LongAdder();
+	private static final LongAdder mailboxStored = new LongAdder();
+	private static final LongAdder mailboxSpilled = new LongAdder();
+	private static final LongAdder mailboxDelivered = new LongAdder();
+	private static final LongAdder mailboxFull = new LongAdder();
+	private static final LongAdder mailboxUnknown = new LongAdder();
+	private static final LongAdder journalDropped = new LongAdder();
+	private static volatile boolean journalStopped = false;
+	private static final Histogram publicLatency = new Histogram();
+	private static final Histogram privateLatency = new Histogram();
+
+	private Metrics() {
+	}
+
+	private static LongAdder[] adders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+
+		for (int i = 0; i < count; i++)
+			adders[i] = new LongAdder();
+
+		return adders;
+	}
+
+	private static int slot(int command) {
+		return (command >= 0 && command < COMMANDS - 1) ? command : COMMANDS - 1;
+	}
+
+	/**
+	 * a command read from a client
+	 */
+	static void received(int command) {
+		received[slot(command)].increment();
+	}
+
+	/**
+	 * frame reached a client, nowNanos is when the write returned
+	 */
+	static void written(Frame frame, long nowNanos) {
+		int command = frame.getCommand();
+		written[slot(command)].increment();
+
+		if (command == Frame.PUBLIC_MESSAGE) {
+			publicLatency.record(nowNanos - frame.getCreated());
+		}
+
+		else if (command == Frame.PRIVATE_MESSAGE) {
+			privateLatency.record(nowNanos - frame.getCreated());
+		}
+	}
+
+	/**
+	 * frame was part of a newcomer's accepted reply, counted without a
+	 * latency, a public message there is from the scrollback
+	 */
+	static void replayed(Frame frame) {
+		written[slot(frame.getCommand())].increment();
+	}
+
+	/**
+	 * count messages put on, or taken off when negative, the room queues
+	 */
+	static void broadcastQueued(int count) {
+		broadcastQueued.add(count);
+	}
+
+	static void joined() {
+		joined.increment();
+	}
+
+	static void left() {
+		left.increment();
+	}
+
+	/**
+	 * a client dropped because its queue stayed full
+	 */
+	static void evicted() {
+		evicted.increment();
+	}
+
+	/**
+	 * a client dropped by the Reaper
+	 */
+	static void timedOut() {
+		timedOut.increment();
+	}
+
+	/**
+	 * a message thrown away to make room in a full queue
+	 */
+	static void dropped() {
+		dropped.increment();
+	}
+
+	/**
+	 * a message turned away by flood control
+	 */
+	static void rejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * a private message kept for a user who is not online
+	 */
+	static void mailboxStored() {
+		mailboxStored.increment();
+	}
+
+	/**
+	 * messages moved from a mailbox to its file
+	 */
+	static void mailboxSpilled(int count) {
+		mailboxSpilled.add(count);
+	}
+
+	/**
+	 * messages a user was sent from its mailbox when it joined, they are
+	 * not in the out_6 count or the private latency
+	 */
+	static void mailboxDelivered(int count) {
+		mailboxDelivered.add(count);
+	}
+
+	/**
+	 * a private message for someone offline that there was no room for
+	 */
+	static void mailboxFull() {
+		mailboxFull.increment();
+	}
+
+	/**
+	 * a private message for a name that has never been on the server
+	 */
+	static void mailboxUnknown() {
+		mailboxUnknown.increment();
+	}
+
+	/**
+	 * the journal thread died, nothing more is written to the journal
+	 */
+	static void journalStopped() {
+		journalStopped = true;
+	}
+
+	/**
+	 * frames that never made it into the journal because it had stopped
+	 */
+	static void journalDropped(int count) {
+		journalDropped.add(count);
+	}
+
+	/**
+	 * registers the MBean and, if port is above 0, starts the admin port
+	 */
+	public static void start(int port) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("chat:type=Metrics"));
+		}
+		catch (JMException e) {
+			Log.warn("jmx_failed", "error", e);
+		}
+
+		if (port > 0) {
+			startAdmin(port);
+		}
+	}
+
+	private static void startAdmin(int port) {
+		final ServerSocket admin;
+
+		try {
+			admin = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		}
+		catch (IOException e) {
+			Log.warn("admin_port_failed", "port", port, "error", e);
+			return;
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try (Socket socket = admin.accept()) {
+						OutputStream out = socket.getOutputStream();
+						out.write(report().getBytes(StandardCharsets.UTF_8));
+						out.flush();
+					}
+					catch (IOException e) {
+						Log.warn("admin_failed", "error", e);
+					}
+				}
+			}
+		}, "admin");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * everything, one value per line, then the clients furthest behind
+	 */
+	public static String report() {
+		Metrics m = new Metrics();
+		StringBuilder out = new StringBuilder();
+
+		line(out, "sessions", m.getConnectedSessions());
+		line(out, "joined", m.getJoined());
+		line(out, "left", m.getLeft());
+		line(out, "evicted", m.getEvictedClients());
+		line(out, "timed_out", m.getTimedOutClients());
+		line(out, "lost", m.getLostClients());
+		line(out, "dropped_messages", m.getDroppedMessages());
+		line(out, "rejected_messages", m.getRejectedMessages());
+		line(out, "mailboxes", m.getMailboxes());
+		line(out, "mailbox_stored", m.getMailboxStored());
+		line(out, "mailbox_spilled", m.getMailboxSpilled());
+		line(out, "mailbox_delivered", m.getMailboxDelivered());
+		line(out, "mailbox_full", m.getMailboxFull());
+		line(out, "mailbox_unknown", m.getMailboxUnknown());
+		line(out, "journal_stopped", m.isJournalStopped() ? 1 : 0);
+		line(out, "journal_dropped", m.getJournalDropped());
+		line(out, "broadcast_queue", m.getBroadcastQueueDepth());
+		line(out, "outbound_backlog", m.getOutboundBacklog());
+		line(out, "outbound_backlog_max", m.getLargestOutboundBacklog());
+
+		for (int i = 0; i < COMMANDS; i++) {
+			String command = (i < COMMANDS - 1) ? Integer.toString(i) : "other";
+
+			if (received[i].sum() > 0)
+				line(out, "in_" + command, received[i].sum());
+			if (written[i].sum() > 0)
+				line(out, "out_" + command, written[i].sum());
+		}
+
+		latency(out, "latency_public_us", publicLatency);
+		latency(out, "latency_private_us", privateLatency);
+		out.append("flush ").append(FlushStats.summary()).append('\n');
+
+		if (Compressor.frames() > 0) {
+			out.append("compression frames=").append(Compressor.frames())
+					.append(" in=").append(Compressor.bytesIn())
+					.append(" out=").append(Compressor.bytesOut())
+					.append(" saved=").append(100 - Compressor.bytesOut() * 100 / Compressor.bytesIn()).append('%')
+					.append(" ns_per_frame=").append(m.getCompressionNanosPerFrame()).append('\n');
+		}
+
+		// the backlogs keep moving, so sort a copy taken once
+		List<Session> sessions = Server2.sessions.values();
+		final long[] backlogs = new long[sessions.size()];
+		Integer[] order = new Integer[sessions.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			backlogs[i] = sessions.get(i).backlog();
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(backlogs[b], backlogs[a]);
+			}
+		});
+
+		for (int i = 0; i < order.length && i < REPORT_CLIENTS && backlogs[order[i]] > 0; i++)
+			out.append("backlog ").append(sessions.get(order[i]).getName()).append(' ').append(backlogs[order[i]]).append('\n');
+
+		return out.toString();
+	}
+
+	private static void line(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void latency(StringBuilder out, String name, Histogram latency) {
+		out.append(name).append(" count=").append(latency.count())
+				.append(" p50=").append(latency.percentile(50) / 1000)
+				.append(" p99=").append(latency.percentile(99) / 1000)
+				.append(" p999=").append(latency.percentile(99.9) / 1000)
+				.append(" max=").append(latency.max() / 1000).append('\n');
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+
+		for (int i = 0; i < adders.length; i++)
+			sums[i] = adders[i].sum();
+
+		return sums;
+	}
+
+	public int getConnectedSessions() {
+		return Server2.sessions.size();
+	}
+
+	public long getJoined() {
+		return joined.sum();
+	}
+
+	public long getLeft() {
+		return left.sum();
+	}
+
+	public long getEvictedClients() {
+		return evicted.sum();
+	}
+
+	public long getTimedOutClients() {
+		return timedOut.sum();
+	}
+
+	public long getLostClients() {
+		// everyone who left without saying 7 and without being evicted or timed out
+		return Math.max(0, left.sum() - received[Frame.DISCONNECT].sum() - evicted.sum() - timedOut.sum());
+	}
+
+	public long getDroppedMessages() {
+		return dropped.sum();
+	}
+
+	public long getRejectedMessages() {
+		return rejected.sum();
+	}
+
+	public int getMailboxes() {
+		return Server2.mailboxes.size();
+	}
+
+	public long getMailboxStored() {
+		return mailboxStored.sum();
+	}
+
+	public long getMailboxSpilled() {
+		return mailboxSpilled.sum();
+	}
+
+	public long getMailboxDelivered() {
+		return mailboxDelivered.sum();
+	}
+
+	public long getMailboxFull() {
+		return mailboxFull.sum();
+	}
+
+	public long getMailboxUnknown() {
+		return mailboxUnknown.sum();
+	}
+
+	public boolean isJournalStopped() {
+		return journalStopped;
+	}
+
+	public long getJournalDropped() {
+		return journalDropped.sum();
+	}
+
+	public long getBroadcastQueueDepth() {
+		return broadcastQueued.sum();
+	}
+
+	public long getOutboundBacklog() {
+		long total = 0;
+
+		for (Session session : Server2.sessions.values())
+			total += session.backlog();
+
+		return total;
+	}
+
+	public int getLargestOutboundBacklog() {
+		int largest = 0;
+
+		for (Session session : Server2.sessions.values())
+			largest = Math.max(largest, session.backlog());
+
+		return largest;
+	}
+
+	public long[] getMessagesIn() {
+		return sums(received);
+	}
+
+	public long[] getMessagesOut() {
+		return sums(written);
+	}
+
+	public long getPublicLatencyP50Micros() {
+		return publicLatency.percentile(50) / 1000;
+	}
+
+	public long getPublicLatencyP99Micros() {
+		return publicLatency.percentile(99) / 1000;
+	}
+
+	public long getPublicLatencyP999Micros() {
+		return publicLatency.percentile(99.9) / 1000;
+	}
+
+	public long getPublicLatencyMaxMicros() {
+		return publicLatency.max() / 1000;
+	}
+
+	public long getPrivateLatencyP50Micros() {
+		return privateLatency.percentile(50) / 1000;
+	}
+
+	public long getPrivateLatencyP99Micros() {
+		return privateLatency.percentile(99) / 1000;
+	}
+
+	public long getPrivateLatencyP999Micros() {
+		return privateLatency.percentile(99.9) / 1000;
+	}
+
+	public long getPrivateLatencyMaxMicros() {
+		return privateLatency.max() / 1000;
+	}
+
+	public double getFramesPerFlush() {
+		return FlushStats.framesPerFlush();
+	}
+
+	public long getCompressedFrames() {
+		return Compressor.frames();
+	}
+
+	public long getCompressionBytesIn() {
+		return Compressor.bytesIn();
+	}
+
+	public long getCompressionBytesOut() {
+		return Compressor.bytesOut();
+	}
+
+	public long getCompressionNanosPerFrame() {
+		long frames = Compressor.frames();
+		return (frames == 0) ? 0 : Compressor.nanos() / frames;
+	}
+
+	public void resetLatency() {
+		publicLatency.reset();
+		privateLatency.reset();
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What Metrics shows over JMX. Messages in and out are indexed by command
+ * number, the last entry counts anything else. Latencies are in
+ * microseconds.
+ */
+
+public interface MetricsMBean {
+
+	int getConnectedSessions();
+
+	long getJoined();
+
+	long getLeft();
+
+	long getEvictedClients();
+
+	long getTimedOutClients();
+
+	long getLostClients();
+
+	long getDroppedMessages();
+
+	long getRejectedMessages();
+
+	int getMailboxes();
+
+	long getMailboxStored();
+
+	long getMailboxSpilled();
+
+	long getMailboxDelivered();
+
+	long getMailboxFull();
+
+	long getMailboxUnknown();
+
+	boolean isJournalStopped();
+
+	long getJournalDropped();
+
+	long getBroadcastQueueDepth();
+
+	long getOutboundBacklog();
+
+	int getLargestOutboundBacklog();
+
+	long[] getMessagesIn();
+
+	long[] getMessagesOut();
+
+	long getPublicLatencyP50Micros();
+
+	long getPublicLatencyP99Micros();
+
+	long getPublicLatencyP999Micros();
+
+	long getPublicLatencyMaxMicros();
+
+	long getPrivateLatencyP50Micros();
+
+	long getPrivateLatencyP99Micros();
+
+	long getPrivateLatencyP999Micros();
+
+	long getPrivateLatencyMaxMicros();
+
+	double getFramesPerFlush();
+
+	long getCompressedFrames();
+
+	long getCompressionBytesIn();
+
+	long getCompressionBytesOut();
+
+	long getCompressionNanosPerFrame();
+
+	/**
+	 * starts both latency histograms again
+	 */
+	void resetLatency();
+}
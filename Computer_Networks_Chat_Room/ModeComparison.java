@@ -0,0 +1,355 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Head to head comparison of the Server2 execution modes. Starts Server2
+ * in a JVM of its own, connects idle clients from this one in steps and
+ * after every step reports what the server process grew by per
+ * connection and how long one public message takes to reach every
+ * client.
+ *
+ * Usage:
+ *	java ModeComparison <threads | virtual | nio> [1000,10000,50000] [probes]
+ *
+ *	-Dcompare.jvm	options for the server's JVM (default -Xss256k
+ *			-Dchat.flood.publicRate=0, every probe comes from one client)
+ *
+ * Only the server is measured, its resident set and thread count come
+ * from /proc/<pid>/status and its heap from jcmd after a full GC, so
+ * what the clients cost stays in this JVM. The clients are plain
+ * non-blocking channels drained by one thread and send the text
+ * handshake without a presence version, so the server never expects
+ * them to answer a ping. A probe the server rejects (18) ends the run,
+ * it would never arrive. LoadGenerator measures latency
+ * under a steady message rate instead. Raise the open file limit
+ * (ulimit -n) above the largest step first, this process and the server
+ * each hold one descriptor per client.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ModeComparison {
+
+	// the used part of each heap or generation in jcmd GC.heap_info
+	private static final Pattern HEAP_USED = Pattern.compile("(?:heap|generation)\\s+total \\d+K, used (\\d+)K");
+
+	private static final ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>();
+	private static volatile AtomicIntegerArray publicMessages = new AtomicIntegerArray(0);
+	// rejections (18) the first client got, the probes come from it
+	private static final AtomicInteger rejected = new AtomicInteger(0);
+	// when the drain thread last read anything
+	private static volatile long lastRead = System.nanoTime();
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0] : "threads";
+		String[] steps = ((args.length > 1) ? args[1] : "1000,10000,50000").split(",");
+		int probes = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+		final Process server = startServer(mode);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				server.destroy();
+			}
+		}));
+		waitForServer(server);
+
+		Selector selector = Selector.open();
+		Thread drain = new Thread(new Drainer(selector), "drain");
+		drain.setDaemon(true);
+		drain.start();
+
+		long baseRss = status(server, "VmRSS:") * 1024;
+		long baseHeap = usedHeap(server);
+		long baseThreads = status(server, "Threads:");
+
+		System.out.println("mode\tclients\trss/conn\theap/conn\tthreads\tfanout p50 ms\tfanout max ms");
+
+		for (String step : steps) {
+			int target = Integer.parseInt(step.trim());
+
+			connect(target, selector);
+
+			// every client hears every join, wait until that has all arrived
+			settle();
+
+			long heap = (usedHeap(server) - baseHeap) / target;
+			long rss = (status(server, "VmRSS:") * 1024 - baseRss) / target;
+			long threads = status(server, "Threads:") - baseThreads;
+			long[] fanout = fanout(probes);
+
+			Arrays.sort(fanout);
+			System.out.println(mode + "\t" + target + "\t" + rss + "\t" + heap + "\t" + threads + "\t"
+					+ millis(fanout[fanout.length / 2]) + "\t" + millis(fanout[fanout.length - 1]));
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Server2 in a JVM of its own, on this class path, with its output on ours
+	 */
+	private static Process startServer(String mode) throws IOException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+
+		for (String option : System.getProperty("compare.jvm", "-Xss256k -Dchat.flood.publicRate=0").trim().split("\\s+"))
+			if (!option.isEmpty())
+				command.add(option);
+
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("Server2");
+		command.add(mode);
+
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	private static void waitForServer(Process server) throws InterruptedException {
+		while (true) {
+			if (!server.isAlive()) {
+				throw new IllegalStateException("server exited with " + server.exitValue());
+			}
+
+			try {
+				new Socket("127.0.0.1", Server2.PORT).close();
+				return;
+			}
+			catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * opens clients until there are target of them, each sends the handshake
+	 * and is handed to the drain thread straight away
+	 */
+	private static void connect(int target, Selector selector) throws IOException {
+		int first = clients.size();
+		AtomicIntegerArray counts = new AtomicIntegerArray(target);
+
+		for (int i = 0; i < first; i++) {
+			counts.set(i, publicMessages.get(i));
+		}
+
+		for (int i = first; i < target; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", Server2.PORT));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.write(ByteBuffer.wrap(("0 user" + i + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+			channel.configureBlocking(false);
+			clients.add(channel);
+		}
+
+		publicMessages = counts;
+
+		for (int i = first; i < target; i++) {
+			clients.get(i).register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+		}
+
+		selector.wakeup();
+	}
+
+	/**
+	 * returns once nothing has been read for two seconds
+	 */
+	private static void settle() throws InterruptedException {
+		do {
+			Thread.sleep(500);
+		} while (System.nanoTime() - lastRead < 2000000000L);
+	}
+
+	/**
+	 * sends public messages from the first client and times how long the
+	 * last client takes to see each one, throws if the server rejects one
+	 */
+	private static long[] fanout(int probes) throws IOException, InterruptedException {
+		long[] results = new long[probes];
+		SocketChannel sender = clients.get(0);
+		ByteBuffer probe = ByteBuffer.wrap("3probe\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+		for (int p = 0; p < probes; p++) {
+			AtomicIntegerArray counts = publicMessages;
+			int expected = counts.get(0) + 1;
+			int rejections = rejected.get();
+
+			long start = System.nanoTime();
+			probe.rewind();
+
+			while (probe.hasRemaining()) {
+				sender.write(probe);
+			}
+
+			for (int i = 0; i < counts.length(); i++) {
+				while (counts.get(i) < expected) {
+					if (rejected.get() != rejections) {
+						throw new IllegalStateException("probe " + p + " was rejected, check the flood limits in -Dcompare.jvm");
+					}
+
+					Thread.yield();
+				}
+			}
+
+			results[p] = System.nanoTime() - start;
+			Thread.sleep(50);
+		}
+
+		return results;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * the server's used heap in bytes after a full GC, by jcmd next to our
+	 * java, 0 if that can't be run or its output isn't understood
+	 */
+	private static long usedHeap(Process server) {
+		String jcmd = System.getProperty("java.home") + File.separator + "bin" + File.separator + "jcmd";
+		String pid = Long.toString(server.pid());
+
+		try {
+			run(jcmd, pid, "GC.run");
+			Matcher used = HEAP_USED.matcher(run(jcmd, pid, "GC.heap_info"));
+			long total = 0;
+
+			while (used.find())
+				total += Long.parseLong(used.group(1)) * 1024;
+
+			return total;
+		}
+		catch (IOException e) {
+			return 0;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	private static String run(String... command) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+
+		while ((n = in.read(buffer)) >= 0)
+			out.write(buffer, 0, n);
+
+		process.waitFor();
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * the number on the line of /proc/<pid>/status that starts with field,
+	 * VmRSS is in kB, 0 where /proc does not exist
+	 */
+	private static long status(Process server, String field) {
+		try {
+			BufferedReader status = new BufferedReader(new FileReader("/proc/" + server.pid() + "/status"));
+
+			try {
+				String line;
+
+				while ((line = status.readLine()) != null) {
+					if (line.startsWith(field)) {
+						return Long.parseLong(line.replaceAll("[^0-9]", ""));
+					}
+				}
+			}
+			finally {
+				status.close();
+			}
+		}
+		catch (IOException ignore) { }
+
+		return 0;
+	}
+
+	/**
+	 * reads every client and counts the public (5) messages each one got,
+	 * and the rejections (18) the first one got
+	 */
+	private static class Drainer implements Runnable {
+
+		private final Selector selector;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		private boolean[] atLineStart = new boolean[0];
+		// the first client's line so far is "1"
+		private boolean sawOne = false;
+
+		Drainer(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						read(key);
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			int client = ((Integer) key.attachment()).intValue();
+			AtomicIntegerArray counts = publicMessages;
+
+			if (client >= atLineStart.length) {
+				int old = atLineStart.length;
+				atLineStart = Arrays.copyOf(atLineStart, counts.length());
+				Arrays.fill(atLineStart, old, atLineStart.length, true);
+			}
+
+			buffer.clear();
+
+			if (((SocketChannel) key.channel()).read(buffer) < 0) {
+				key.cancel();
+				return;
+			}
+
+			buffer.flip();
+			lastRead = System.nanoTime();
+
+			while (buffer.hasRemaining()) {
+				byte b = buffer.get();
+
+				if (atLineStart[client] && b == '5') {
+					counts.incrementAndGet(client);
+				}
+
+				if (client == 0) {
+					if (sawOne && b == '8') {
+						rejected.incrementAndGet();
+					}
+
+					sawOne = atLineStart[client] && b == '1';
+				}
+
+				atLineStart[client] = (b == '\n');
+			}
+		}
+	}
+}
@@ -0,0 +1,843 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Selector based server mode. Server2.ACCEPTORS acceptor threads hand
+ * new channels round robin to a small, fixed number of event loops, and
+ * each event loop services all of its clients without blocking, the
+ * handshake included. The acceptors only ever block in accept, so a storm
+ * of clients is taken off the accept queue however busy the loops are.
+ * The sessions go in the same Server2.sessions and their lines go through
+ * the same Handler, so ChatScreen clients do not know the difference.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class NioServer {
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	// most frames handed to one gathering write
+	private static final int MAX_GATHER = 64;
+
+	private final int port;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	public NioServer(int port, int loopCount) {
+		this.port = port;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+	}
+
+	/**
+	 * starts the event loops and the acceptors, the calling thread is the
+	 * first acceptor
+	 */
+	public void run() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.start();
+		}
+
+		final ServerSocketChannel[] servers = listen(Server2.ACCEPTORS);
+		Log.info("listening", "port", port, "event_loops", loops.length);
+
+		// the acceptors share the one channel if there is only one
+		for (int i = 1; i < Server2.ACCEPTORS; i++) {
+			final ServerSocketChannel server = servers[i % servers.length];
+
+			new Thread(new Runnable() {
+				public void run() {
+					accept(server);
+				}
+			}, "nio-acceptor-" + i).start();
+		}
+
+		accept(servers[0]);
+	}
+
+	/**
+	 * count channels listening on the port, or only one if they can't
+	 * share it, see Server2.listen
+	 */
+	private ServerSocketChannel[] listen(int count) throws IOException {
+		ArrayList<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+
+		do {
+			ServerSocketChannel server = ServerSocketChannel.open();
+
+			if (count > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+
+			else {
+				count = 1;
+			}
+
+			server.bind(new InetSocketAddress(port), Server2.ACCEPT_BACKLOG);
+			servers.add(server);
+		} while (servers.size() < count);
+
+		return servers.toArray(new ServerSocketChannel[servers.size()]);
+	}
+
+	/**
+	 * one acceptor, it only hands each channel to an event loop, which
+	 * does the handshake
+	 */
+	private void accept(ServerSocketChannel server) {
+		while (true) {
+			SocketChannel channel = null;
+
+			try {
+				channel = server.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+
+			catch (IOException e) {
+				// out of file descriptors, or the client gave up already, wait a little for the next one
+				Log.error("accept_failed", "error", e);
+
+				if (channel != null) {
+					try {
+						channel.close();
+					}
+					catch (IOException ignore) { }
+				}
+
+				LockSupport.parkNanos(100 * 1000000L);
+				continue;
+			}
+
+			// spread the clients round robin over the event loops
+			NioSession session = new NioSession(channel);
+			loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(session);
+
+			// from the start, a client that never sends its username is closed too,
+			// it has its loop by now to hand the close to
+			Server2.reaper.watch(session);
+		}
+	}
+
+	/**
+	 * One selector and the thread that runs it. Other threads never touch
+	 * the selector directly, they queue work and wake it up instead.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private Thread thread;
+		private final Queue<NioSession> newSessions = new ConcurrentLinkedQueue<NioSession>();
+		private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<NioSession>();
+		// all wait the same window, so they come due in the order they were added
+		private final Queue<NioSession> delayedWrites = new ConcurrentLinkedQueue<NioSession>();
+		// disconnected on another thread, their channels are closed here
+		private final Queue<NioSession> closes = new ConcurrentLinkedQueue<NioSession>();
+		private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		// the frames taken off a session's queue for one write
+		private final ArrayList<Frame> batch = new ArrayList<Frame>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(NioSession session) {
+			session.loop = this;
+			newSessions.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * flushes session on the next pass, or once the flush window is up
+		 * when delay is set
+		 */
+		void scheduleWrite(NioSession session, boolean delay) {
+			if (delay && Server2.FLUSH_MAX_LATENCY_MILLIS > 0) {
+				session.flushDue = System.nanoTime() + Server2.FLUSH_MAX_LATENCY_MILLIS * 1000000L;
+				delayedWrites.add(session);
+			}
+
+			else {
+				pendingWrites.add(session);
+			}
+
+			selector.wakeup();
+		}
+
+		/**
+		 * closes session's channel on the next pass, the loop may be in the
+		 * middle of writing to it now
+		 */
+		void scheduleClose(NioSession session) {
+			closes.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * how long select may block before a delayed flush is due, 0 is forever
+		 */
+		private long selectTimeout() {
+			NioSession next = delayedWrites.peek();
+
+			if (next == null) {
+				return 0;
+			}
+
+			return Math.max(1, (next.flushDue - System.nanoTime() + 999999) / 1000000);
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+
+			while (true) {
+				try {
+					selector.select(selectTimeout());
+
+					NioSession session;
+
+					while ((session = newSessions.poll()) != null) {
+						try {
+							session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+						}
+						catch (IOException | RuntimeException e) {
+							failed(session, e);
+						}
+					}
+
+					while ((session = closes.poll()) != null) {
+						session.closeChannel();
+					}
+
+					while ((session = pendingWrites.poll()) != null) {
+						try {
+							session.flush();
+						}
+						catch (RuntimeException e) {
+							failed(session, e);
+						}
+					}
+
+					while ((session = delayedWrites.peek()) != null && session.flushDue - System.nanoTime() <= 0) {
+						delayedWrites.poll();
+
+						try {
+							session.flush();
+						}
+						catch (RuntimeException e) {
+							failed(session, e);
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						session = (NioSession) key.attachment();
+
+						// a key cancelled under the session only ends that session
+						try {
+							if (!key.isValid()) {
+								continue;
+							}
+
+							if (key.isReadable()) {
+								session.read();
+							}
+
+							if (key.isValid() && key.isWritable()) {
+								session.flush();
+							}
+						}
+						catch (RuntimeException e) {
+							failed(session, e);
+						}
+					}
+				}
+
+				catch (IOException | RuntimeException e) {
+					Log.warn("event_loop_failed", "error", e);
+				}
+			}
+		}
+
+		/**
+		 * a session that threw, it is dropped and the loop goes on with the rest
+		 */
+		private void failed(NioSession session, Exception e) {
+			Log.warn("session_failed", "user", session.clientName, "error", e);
+			session.disconnect();
+		}
+	}
+
+	/**
+	 * A single client connection. Reading, parsing and writing run on the
+	 * event loop that owns the session, send() may be called from anywhere.
+	 */
+	private class NioSession implements Session {
+
+		final SocketChannel channel;
+		EventLoop loop;
+		SelectionKey key;
+		// read by disconnect() on whatever thread closes the session
+		volatile String clientName = null;
+		private volatile Room room = null;
+		private volatile boolean presenceVersioned = false;
+		private int id = -1;
+		private final Liveness liveness = new Liveness();
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final Command command = new Command();
+		private final Handler handler = new Handler();
+		private WireFormat format = null;	// decided by the first byte the client sends
+		private boolean helloRead = false;
+		// deflates each batch when the client asked for it, only the event loop touches it
+		private Compressor compressor = null;
+		private final Queue<Frame> outbound = new ConcurrentLinkedQueue<Frame>();
+		private final AtomicInteger queued = new AtomicInteger(0);
+		private final AtomicLong queuedBytes = new AtomicLong(0);
+		private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+		private volatile long flushDue;
+		// taken off outbound but not all written yet, how many frames each
+		// buffer holds (a compressed block holds several) and the frames,
+		// only the event loop touches them
+		private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+		private final ArrayDeque<Integer> writingCounts = new ArrayDeque<Integer>();
+		private final ArrayDeque<Frame> writingFrames = new ArrayDeque<Frame>();
+		// kept mail until its buffer is written, the buffer once it is read
+		// off disk, lateMail hands it over from the mailbox thread
+		private Mailboxes.Mailbox mail = null;
+		private ByteBuffer mailBuffer = null;
+		private volatile byte[] lateMail = null;
+		private volatile boolean started = false;
+		private volatile boolean closeAfterFlush = false;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		NioSession(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public String getName() {
+			return clientName;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public void setId(int id) {
+			this.id = id;
+		}
+
+		public Room getRoom() {
+			return room;
+		}
+
+		public void setRoom(Room room) {
+			this.room = room;
+		}
+
+		public boolean isPresenceVersioned() {
+			return presenceVersioned;
+		}
+
+		public void setPresenceVersioned() {
+			presenceVersioned = true;
+		}
+
+		public Liveness liveness() {
+			return liveness;
+		}
+
+		public int backlog() {
+			return queued.get();
+		}
+
+		public void drop() {
+			disconnect();
+		}
+
+		public void start() {
+			started = true;
+
+			// the handshake reply and the last message don't wait for the flush window
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.scheduleWrite(this, false);
+			}
+		}
+
+		public void send(Frame message) {
+			if (closed.get() || closeAfterFlush) {
+				return;
+			}
+
+			if (queued.incrementAndGet() > Server2.OUTBOUND_CAPACITY && !makeRoom()) {
+				queued.decrementAndGet();
+				evict();
+				return;
+			}
+
+			outbound.add(message);
+
+			int length = message.length(format);
+			long pending = queuedBytes.addAndGet(length);
+
+			// a full window goes out now, without waiting for the rest of the delay
+			if (started && pending >= Server2.FLUSH_MAX_BYTES && pending - length < Server2.FLUSH_MAX_BYTES) {
+				loop.scheduleWrite(this, false);
+			}
+
+			else {
+				scheduleWrite();
+			}
+		}
+
+		public void close(Frame lastMessage) {
+			if (lastMessage != null) {
+				queued.incrementAndGet();
+				queuedBytes.addAndGet(lastMessage.length(format));
+				outbound.add(lastMessage);
+			}
+
+			closeAfterFlush = true;
+			start();
+		}
+
+		/**
+		 * applies the overflow policy to a full queue, false means drop the client
+		 */
+		private boolean makeRoom() {
+			switch (Server2.OVERFLOW_POLICY) {
+				case DROP_OLDEST:
+					Frame oldest = outbound.poll();
+
+					if (oldest != null) {
+						queued.decrementAndGet();
+						queuedBytes.addAndGet(-oldest.length(format));
+						Metrics.dropped();
+					}
+					return true;
+
+				case BLOCK:
+					// the event loop can't wait for itself to drain the queue
+					if (Thread.currentThread() != loop.thread) {
+						long deadline = System.nanoTime() + Server2.BLOCK_MILLIS * 1000000L;
+
+						while (queued.get() > Server2.OUTBOUND_CAPACITY && System.nanoTime() < deadline && !closed.get()) {
+							LockSupport.parkNanos(100000L);
+						}
+					}
+					return queued.get() <= Server2.OUTBOUND_CAPACITY;
+
+				default:
+					return false;
+			}
+		}
+
+		private void scheduleWrite() {
+			if (started && writeScheduled.compareAndSet(false, true)) {
+				loop.scheduleWrite(this, true);
+			}
+		}
+
+		void read() {
+			// disconnected elsewhere, the loop closes the channel on its next pass
+			if (closed.get()) {
+				return;
+			}
+
+			try {
+				int count = channel.read(readBuffer);
+
+				if (count < 0) {
+					disconnect();
+					return;
+				}
+
+				readBuffer.flip();
+
+				// a binary client starts with HELLO, a text client with "0 name"
+				if (format == null && readBuffer.hasRemaining()) {
+					format = BinaryProtocol.isHello(readBuffer.get(readBuffer.position()) & 0xff) ? WireFormat.BINARY : WireFormat.TEXT;
+				}
+
+				if (format == WireFormat.BINARY) {
+					readFrames();
+				}
+
+				else {
+					readLines();
+				}
+			}
+
+			catch (IOException e) {
+				disconnect();
+			}
+		}
+
+		/**
+		 * parses every whole line in the buffer in place, a partial line
+		 * stays in the buffer until the rest of it arrives
+		 */
+		private void readLines() {
+			while (CommandDecoder.decode(readBuffer, command)) {
+				process(command);
+
+				if (closed.get() || closeAfterFlush) {
+					readBuffer.clear();
+					return;
+				}
+			}
+
+			readBuffer.compact();
+
+			// the line that is coming is bigger than the buffer
+			if (!readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= CommandDecoder.MAX_LINE_LENGTH) {
+					disconnect();
+					return;
+				}
+
+				readBuffer = grow(readBuffer);
+			}
+		}
+
+		/**
+		 * decodes every whole frame in the buffer in place, a partial frame
+		 * stays in the buffer until the rest of it arrives
+		 */
+		private void readFrames() throws IOException {
+			if (!helloRead) {
+				int asked = BinaryProtocol.decodeHello(readBuffer);
+
+				if (asked == -2) {
+					readBuffer.compact();
+					return;
+				}
+
+				helloRead = true;
+
+				// a version 2 HELLO is answered ahead of the reply to the username
+				if (asked >= 0) {
+					int options = BinaryProtocol.accept(asked);
+
+					if ((options & BinaryProtocol.DEFLATE) != 0)
+						compressor = new Compressor();
+
+					writing.add(ByteBuffer.wrap(new byte[] { (byte) options }));
+					writingCounts.add(0);
+				}
+			}
+
+			while (BinaryProtocol.decode(readBuffer, command)) {
+				process(command);
+
+				if (closed.get() || closeAfterFlush) {
+					readBuffer.clear();
+					return;
+				}
+			}
+
+			readBuffer.compact();
+
+			// the frame that is coming is bigger than the buffer
+			if (!readBuffer.hasRemaining()) {
+				readBuffer = grow(readBuffer);
+			}
+		}
+
+		private ByteBuffer grow(ByteBuffer buffer) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, BinaryProtocol.MAX_FRAME + 4));
+			buffer.flip();
+			bigger.put(buffer);
+			return bigger;
+		}
+
+		/**
+		 * the handshake ChatThread does, then every other command goes to Handler
+		 */
+		private void process(Command command) {
+			if (clientName != null) {
+				handler.dispatch(this, command);
+			}
+
+			// blank lines before the username are skipped
+			else if (command.getCommand() < 0) {
+				return;
+			}
+
+			else if (command.getCommand() == Frame.JOIN) {
+				Metrics.received(Frame.JOIN);
+				join(command.field(Command.USERNAME).trim(), Presence.parseVersion(command.field(Command.TARGET).trim()));
+			}
+
+			else {
+				disconnect();
+			}
+		}
+
+		private void join(String name, long presenceSeen) {
+			clientName = name;
+
+			if (!Server2.sessions.register(this)) {
+				clientName = null;
+				close(Frame.nameTaken());
+				return;
+			}
+
+			// dropped while registering, disconnect() may not have seen the name
+			if (closed.get()) {
+				Server2.leave(this);
+				return;
+			}
+
+			Log.debug("connected", "user", name, "format", format);
+
+			if (format == WireFormat.BINARY)
+				liveness.answersPings();
+
+			// the list and the lobby's recent messages go out ahead of any broadcast
+			// that was queued in the meantime, in one gathering write. They are
+			// counted here and not timed, like the mail below.
+			for (Frame frame : Server2.accept(this, presenceSeen)) {
+				writing.add(frame.buffer(format));
+				writingCounts.add(0);
+				Metrics.replayed(frame);
+			}
+
+			// private messages kept while it was away, however many, are one buffer.
+			// Spilled ones are read on the mailbox thread, until then nothing
+			// queued behind them is written.
+			mail = Server2.mailboxes.take(name);
+
+			if (mail != null) {
+				CompletableFuture<byte[]> read = mail.read(format);
+
+				if (read.isDone()) {
+					addMail(read.join());
+				}
+
+				else {
+					read.thenAccept(bytes -> {
+						lateMail = bytes;
+						loop.scheduleWrite(this, false);
+					});
+				}
+			}
+
+			start();
+			Server2.joined(this);
+		}
+
+		private void addMail(byte[] bytes) {
+			mailBuffer = ByteBuffer.wrap(bytes);
+			writing.add(mailBuffer);
+			writingCounts.add(0);
+		}
+
+		/**
+		 * write as much as the socket takes, wait for OP_WRITE for the rest.
+		 * Everything pending, up to -Dchat.flush.maxBytes, goes to the
+		 * socket in one gathering write.
+		 */
+		void flush() {
+			if (closed.get()) {
+				endCompressor();
+				return;
+			}
+
+			writeScheduled.set(false);
+
+			if (mail != null && mailBuffer == null && lateMail != null)
+				addMail(lateMail);
+
+			// nothing goes out ahead of the mail
+			boolean mailPending = mail != null && mailBuffer == null;
+
+			ByteBuffer[] gather = loop.gather;
+			ArrayList<Frame> batch = loop.batch;
+
+			try {
+				while (true) {
+					long bytes = 0;
+
+					for (ByteBuffer frame : writing)
+						bytes += frame.remaining();
+
+					Frame next;
+					long batchBytes = 0;
+					batch.clear();
+
+					while (!mailPending && writing.size() + batch.size() < gather.length && bytes < Server2.FLUSH_MAX_BYTES && (next = outbound.poll()) != null) {
+						int length = next.length(format);
+						queued.decrementAndGet();
+						queuedBytes.addAndGet(-length);
+						batch.add(next);
+						bytes += length;
+						batchBytes += length;
+					}
+
+					byte[] block = (compressor != null && !batch.isEmpty()) ? compressor.compress(batch, batchBytes) : null;
+
+					if (block != null) {
+						writing.add(ByteBuffer.wrap(block));
+						writingCounts.add(batch.size());
+						writingFrames.addAll(batch);
+					}
+
+					else {
+						for (int i = 0; i < batch.size(); i++) {
+							// a view of the shared bytes, nothing is copied per client
+							writing.add(batch.get(i).buffer(format));
+							writingCounts.add(1);
+							writingFrames.add(batch.get(i));
+						}
+					}
+
+					batch.clear();
+
+					if (writing.isEmpty()) {
+						// close() queues its last message before setting the flag, so look once more
+						if (closeAfterFlush && outbound.isEmpty()) {
+							disconnect();
+							return;
+						}
+
+						if (outbound.isEmpty() || mailPending) {
+							break;
+						}
+
+						continue;
+					}
+
+					// the accepted reply can hold more than one gathering write takes
+					int count = 0;
+
+					for (ByteBuffer buffer : writing) {
+						if (count == gather.length)
+							break;
+						gather[count++] = buffer;
+					}
+
+					long written = channel.write(gather, 0, count);
+					Arrays.fill(gather, 0, count, null);
+
+					int frames = 0;
+					long now = System.nanoTime();
+
+					while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+						if (writing.poll() == mailBuffer) {
+							mail.delivered();
+							mail = null;
+							mailBuffer = null;
+						}
+
+						for (int i = writingCounts.poll(); i > 0; i--) {
+							Frame frame = writingFrames.poll();
+
+							if (frame.getCommand() == Frame.PING)
+								liveness.pinged();
+
+							Metrics.written(frame, now);
+							frames++;
+						}
+					}
+
+					FlushStats.record(frames, written);
+
+					if (written > 0)
+						liveness.wrote();
+
+					if (!writing.isEmpty()) {
+						// a client that takes none of the rest for -Dchat.idle.writeMillis is dropped
+						liveness.writing();
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+
+				key.interestOps(SelectionKey.OP_READ);
+			}
+
+			catch (IOException e) {
+				disconnect();
+			}
+		}
+
+		/**
+		 * the client could not keep up, drop it without writing anything else
+		 */
+		private void evict() {
+			Log.warn("evicted", "user", clientName);
+			Metrics.evicted();
+			disconnect();
+		}
+
+		/**
+		 * any thread may call this, a dispatcher evicting the client or the
+		 * Reaper dropping it, and only the first call does anything
+		 */
+		void disconnect() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+
+			liveness.closed();
+
+			if (clientName != null) {
+				Server2.leave(this);
+			}
+
+			// the channel and the compressor belong to the event loop
+			if (Thread.currentThread() == loop.thread) {
+				closeChannel();
+			}
+
+			else {
+				loop.scheduleClose(this);
+			}
+		}
+
+		/**
+		 * only on the event loop, which then never sees the key again
+		 */
+		void closeChannel() {
+			try {
+				channel.close();
+			}
+
+			catch (IOException ignore) { }
+
+			// the mail never got out, keep it for next time
+			if (mail != null) {
+				mail.putBack();
+				mail = null;
+			}
+
+			endCompressor();
+		}
+
+		private void endCompressor() {
+			if (compressor != null) {
+				compressor.end();
+				compressor = null;
+			}
+		}
+	}
+}
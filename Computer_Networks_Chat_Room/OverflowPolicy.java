@@ -0,0 +1,27 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What a session does when a client reads slower than messages arrive
+ * and its outbound queue fills up.
+ */
+
+public enum OverflowPolicy {
+
+	// throw away the oldest queued message to make room
+	DROP_OLDEST,
+
+	// disconnect the client and announce that it left
+	DROP_CLIENT,
+
+	// wait a little for room, then disconnect the client
+	BLOCK;
+
+	/**
+	 * parses the -Dchat.outbound.overflow values drop-oldest, drop-client and block
+	 */
+	public static OverflowPolicy parse(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Who is on the server, as a version number and the changes that got it
+ * there. Every join and leave adds one to the version and goes to
+ * everyone as a 10 or 9 carrying it, and the last -Dchat.presence.history
+ * (default 1024) of those are kept. A client that has just been accepted
+ * gets a 21 snapshot of every name and then the changes made since the
+ * snapshot was taken, so it is up to date and the rest arrive as they
+ * happen. The snapshot is one Frame, encoded once and handed to every
+ * newcomer until enough has changed to make a new one worth it, which
+ * keeps a burst of joins from rebuilding the whole list for each.
+ *
+ * A client that saw version n, now or on an earlier connection, asks
+ * with 22 n (or with n in its 0) and is sent only the changes after n,
+ * or a snapshot if they are no longer kept. 0 asks for everything.
+ *
+ * None of that goes to a client that never sends a version, it gets the
+ * whole list in its 1 and 9 and 10 without versions, the way clients
+ * were sent them before there were any.
+ *
+ * Versions start at the time the server started, in microseconds, so
+ * one from before a restart is never taken for one of this run's.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+public final class Presence {
+
+	// changes a snapshot may fall behind by before a newcomer gets a new one
+	private static final int MIN_STALE = 16;
+
+	private final Room everyone;
+	private final LinkedHashSet<String> names = new LinkedHashSet<String>();
+	// the frame for each of the last versions, log[version % log.length]
+	private final Frame[] log;
+	private final long first;
+	private long version;
+	private Frame snapshot;
+	private long snapshotVersion;
+	// the names for a 1, made again once anything changed
+	private String list = "";
+	private long listVersion;
+
+	/**
+	 * changes go to everyone, history is how many are kept for catching up
+	 */
+	public Presence(Room everyone, int history) {
+		this.everyone = everyone;
+		this.log = new Frame[Math.max(1, history)];
+		this.first = System.currentTimeMillis() * 1000;
+		this.version = first;
+		this.snapshot = Frame.presence(first, "");
+		this.snapshotVersion = first;
+		this.listVersion = first;
+	}
+
+	/**
+	 * adds session and tells everyone, returns the 10 that was sent or
+	 * null if it left before it got here
+	 */
+	public synchronized Frame join(Session session) {
+		// Server2.leave takes it out of the sessions before it comes here
+		if (Server2.sessions.get(session.getName()) != session || !names.add(session.getName())) {
+			return null;
+		}
+
+		return change(Frame.joined(session.getName(), version + 1));
+	}
+
+	/**
+	 * takes name out and tells everyone, returns the 9 that was sent or
+	 * null if it was never added
+	 */
+	public synchronized Frame leave(String name) {
+		if (!names.remove(name)) {
+			return null;
+		}
+
+		return change(Frame.left(name, version + 1));
+	}
+
+	/**
+	 * the version a client sent in its 0 or 22, -1 if there is none
+	 */
+	public static long parseVersion(String field) {
+		try {
+			return field.isEmpty() ? -1 : Long.parseLong(field);
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * the 1 for a client that never sent a version, newcomer is not in
+	 * the list yet but always was in this reply
+	 */
+	public synchronized Frame accepted(String newcomer, String welcome) {
+		if (listVersion != version) {
+			list = String.join(",", names);
+			listVersion = version;
+		}
+
+		return Frame.accepted(list.isEmpty() ? newcomer : list + "," + newcomer, welcome);
+	}
+
+	/**
+	 * the version the changes are at
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * what a client that has seen version seen needs to be up to date,
+	 * oldest first. seen is -1 for a client that has seen nothing.
+	 */
+	public synchronized Frame[] since(long seen) {
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		long from = seen;
+
+		if (seen < first || seen > version || version - seen > log.length) {
+			frames.add(snapshot());
+			from = snapshotVersion;
+		}
+
+		for (long v = from + 1; v <= version; v++)
+			frames.add(log[(int) (v % log.length)]);
+
+		return frames.toArray(new Frame[frames.size()]);
+	}
+
+	private Frame change(Frame frame) {
+		version++;
+		log[(int) (version % log.length)] = frame;
+		// sent while the lock is held, so everyone gets the changes in version order
+		everyone.broadcast(frame);
+		return frame;
+	}
+
+	/**
+	 * the snapshot, made again once it is more than about the square root
+	 * of the list behind. Making it costs the whole list once and every
+	 * change after it costs each newcomer a frame, that is where the two
+	 * come out even over a burst of joins.
+	 */
+	private Frame snapshot() {
+		long behind = version - snapshotVersion;
+
+		if (behind > log.length || behind > Math.max(MIN_STALE, (long) Math.sqrt(names.size()))) {
+			snapshot = Frame.presence(version, String.join(",", names));
+			snapshotVersion = version;
+		}
+
+		return snapshot;
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Closes clients that have gone away without saying 7. A client that has
+ * sent nothing for pingMillis is sent 19, which a client that knows it
+ * answers with 20. A client that has shown it does, by speaking the
+ * binary protocol, keeping presence versions or sending a 20, is dropped
+ * if it has still sent nothing readMillis - pingMillis after the ping was
+ * written to its socket, so a ping stuck behind a burst of presence
+ * traffic doesn't count against it. An old text client that only listens
+ * never answers and is never dropped for it. With pings off readMillis
+ * counts from the last thing the client sent. Anyone is dropped who has
+ * not sent a username after readMillis, or has taken none of what it was
+ * sent for writeMillis, its socket is closed under the writer. Leaving
+ * sends 9 as usual.
+ *
+ * The reaper is one thread and a timer wheel of slots a tick apart. Each
+ * session sits in the slot of the next tick it could have timed out at,
+ * and when the wheel gets there its Liveness says whether it did or when
+ * to look again. Reading and writing never touch the wheel, so a busy
+ * client is looked at once per timeout and not once per message.
+ */
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Reaper implements Runnable {
+
+	// a power of two, a timeout longer than the wheel goes round more than once
+	private static final int SLOTS = 512;
+	private static final Frame PING = Frame.ping();
+
+	private final long tickNanos;
+	// the timeouts in ticks, 0 is off
+	private final long pingTicks;
+	private final long readTicks;
+	private final long writeTicks;
+	// how long a client has to answer a ping once it has been written
+	private final long answerTicks;
+	private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+	// only the reaper thread touches the slots
+	private final ArrayList<ArrayList<Entry>> wheel = new ArrayList<ArrayList<Entry>>(SLOTS);
+	private volatile long now = 0;
+	private volatile boolean running = false;
+
+	/**
+	 * the timeouts are in milliseconds and 0 turns one off, each is
+	 * rounded up to a whole tick
+	 */
+	public Reaper(long tickMillis, long pingMillis, long readMillis, long writeMillis) {
+		tickMillis = Math.max(1, tickMillis);
+		this.tickNanos = tickMillis * 1000000L;
+		this.pingTicks = ticks(pingMillis, tickMillis);
+		this.readTicks = ticks(readMillis, tickMillis);
+		this.writeTicks = ticks(writeMillis, tickMillis);
+		this.answerTicks = Math.max(1, readTicks - pingTicks);
+
+		for (int i = 0; i < SLOTS; i++)
+			wheel.add(new ArrayList<Entry>());
+	}
+
+	private static long ticks(long millis, long tickMillis) {
+		return (millis > 0) ? (millis + tickMillis - 1) / tickMillis : 0;
+	}
+
+	/**
+	 * ticks since the reaper started, the clock Liveness keeps time in
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * starts looking after a session, until its connection is closed
+	 */
+	public void watch(Session session) {
+		if (running && (pingTicks > 0 || readTicks > 0 || writeTicks > 0)) {
+			added.add(new Entry(session));
+		}
+	}
+
+	public void run() {
+		running = true;
+		long start = System.nanoTime();
+
+		while (true) {
+			long wait = start + (now + 1) * tickNanos - System.nanoTime();
+
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+
+			long tick = now + 1;
+			now = tick;
+
+			Entry entry;
+
+			while ((entry = added.poll()) != null) {
+				entry.due = tick + 1;
+				slot(entry.due).add(entry);
+			}
+
+			expire(tick);
+		}
+	}
+
+	private ArrayList<Entry> slot(long tick) {
+		return wheel.get((int) (tick & (SLOTS - 1)));
+	}
+
+	/**
+	 * looks at every session due this tick, the rest of the slot is due on
+	 * a later turn of the wheel
+	 */
+	private void expire(long tick) {
+		ArrayList<Entry> slot = slot(tick);
+		int kept = 0;
+
+		for (int i = 0; i < slot.size(); i++) {
+			Entry entry = slot.get(i);
+
+			if (entry.due <= tick) {
+				entry.due = check(entry, tick);
+
+				if (entry.due < 0) {
+					continue;
+				}
+			}
+
+			if (slot(entry.due) == slot) {
+				slot.set(kept++, entry);
+			}
+
+			else {
+				slot(entry.due).add(entry);
+			}
+		}
+
+		slot.subList(kept, slot.size()).clear();
+	}
+
+	/**
+	 * pings or drops the session if it is time to, and returns the next
+	 * tick to look at it, -1 once it is gone
+	 */
+	private long check(Entry entry, long tick) {
+		Session session = entry.session;
+		Liveness liveness = session.liveness();
+
+		if (liveness.isClosed()) {
+			return -1;
+		}
+
+		long lastRead = liveness.lastRead();
+		long stalledSince = liveness.stalledSince();
+		// the first ping since the client was last heard from, -1 if none has reached it
+		long pingWritten = (liveness.pingWritten() > lastRead) ? liveness.pingWritten() : -1;
+		// when the client counts as gone if it stays quiet, Long.MAX_VALUE for never
+		long readDue = Long.MAX_VALUE;
+
+		if (readTicks > 0 && session.getName() == null) {
+			readDue = lastRead + readTicks;
+		}
+
+		else if (readTicks > 0 && liveness.isAnsweringPings()) {
+			if (pingTicks == 0)
+				readDue = lastRead + readTicks;
+			else if (pingWritten >= 0)
+				readDue = pingWritten + answerTicks;
+		}
+
+		if (writeTicks > 0 && stalledSince >= 0 && tick - stalledSince >= writeTicks) {
+			timedOut(session, "write");
+			return -1;
+		}
+
+		if (tick >= readDue) {
+			timedOut(session, "read");
+			return -1;
+		}
+
+		long due = readDue;
+
+		// a client that has not sent its username yet only expects the reply to it
+		if (pingTicks > 0 && session.getName() != null) {
+			// one ping for every pingTicks the client stays quiet
+			long quietSince = Math.max(lastRead, entry.pinged);
+
+			if (tick - quietSince >= pingTicks) {
+				session.send(PING);
+				entry.pinged = tick;
+				quietSince = tick;
+			}
+
+			due = Math.min(due, quietSince + pingTicks);
+		}
+
+		// a write that gets stuck after this is caught within twice writeTicks
+		if (writeTicks > 0) {
+			due = Math.min(due, (stalledSince >= 0) ? stalledSince + writeTicks : tick + writeTicks);
+		}
+
+		// nothing to wait for, look again a turn of the wheel later to see it closed
+		if (due == Long.MAX_VALUE) {
+			due = tick + SLOTS;
+		}
+
+		return Math.max(due, tick + 1);
+	}
+
+	private static void timedOut(Session session, String side) {
+		Log.info("timed_out", "user", session.getName(), "idle", side);
+		Metrics.timedOut();
+		session.drop();
+	}
+
+	/**
+	 * a session on the wheel
+	 */
+	private static final class Entry {
+
+		final Session session;
+		// the tick it is next looked at, and the last tick it was pinged
+		long due;
+		long pinged = -1;
+
+		Entry(Session session) {
+			this.session = session;
+		}
+	}
+}
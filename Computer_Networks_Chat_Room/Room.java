@@ -0,0 +1,231 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * A chat room, its members and the messages waiting to go to them. Each
+ * room has its own queue and always goes to the same BroadcastThread, so
+ * a busy room only costs its own members and its own dispatcher. The
+ * dispatcher also keeps the room's last public messages for newcomers.
+ *
+ * The members are session ids, sending goes over the set's words and
+ * takes each session out of Server2.sessions by its id.
+ *
+ * A newcomer gets each public message once, either sent live or from
+ * the scrollback, and nobody locks for it. While it comes in it has an
+ * arrival here, a sequence number from which on it is sent messages
+ * live. The newcomer sets that to where the scrollback stands once it is
+ * a member, unless a send that found it already set it to its own
+ * message, whichever is first. Everything before goes to it from the
+ * scrollback and a send skips it. The dispatcher forgets an arrival once
+ * it is sending past it.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Room {
+
+	// where everyone starts, never removed
+	public static final String LOBBY = "lobby";
+	public static final int MAX_NAME_LENGTH = 32;
+
+	private final String name;
+	private final IdSet members;
+	// the room for the whole server, its members are in other rooms as well
+	private final boolean everyone;
+	private final BroadcastThread dispatcher;
+	private final ConcurrentLinkedQueue<Frame> messages = new ConcurrentLinkedQueue<Frame>();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final Scrollback scrollback;
+	// newcomers still being told apart from the live sends, see above
+	private final ConcurrentHashMap<Session, AtomicLong> arrivals = new ConcurrentHashMap<Session, AtomicLong>();
+
+	Room(String name, IdSet members, BroadcastThread dispatcher, int scrollback) {
+		this.name = name;
+		this.members = members;
+		this.everyone = name.isEmpty();
+		this.dispatcher = dispatcher;
+		this.scrollback = new Scrollback(scrollback);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * queue a message for every member, the dispatcher does the sending
+	 */
+	public void broadcast(Frame message) {
+		messages.add(message);
+		Metrics.broadcastQueued(1);
+
+		// the room only sits on its dispatcher's queue once
+		if (scheduled.compareAndSet(false, true)) {
+			dispatcher.schedule(this);
+		}
+	}
+
+	/**
+	 * the members' names, comma separated
+	 */
+	public String memberNames() {
+		StringBuilder names = new StringBuilder();
+
+		for (int index = 0; index < members.words(); index++) {
+			for (long word = members.word(index); word != 0; word &= word - 1) {
+				Session member = member((index << 6) + Long.numberOfTrailingZeros(word));
+
+				if (member != null) {
+					if (names.length() > 0)
+						names.append(',');
+					names.append(member.getName());
+				}
+			}
+		}
+
+		return names.toString();
+	}
+
+	boolean add(Session session) {
+		return members.add(session.getId());
+	}
+
+	/**
+	 * moves session here and puts the last public messages said here in
+	 * recent, oldest first. A message sent after this is not among them.
+	 */
+	boolean add(Session session, List<Frame> recent) {
+		if (!scrollback.isEnabled()) {
+			session.setRoom(this);
+			return members.add(session.getId());
+		}
+
+		AtomicLong liveFrom = new AtomicLong(Long.MAX_VALUE);
+		// before the room is set, a send still holding the bit of whoever had
+		// the session's id before finds the session as soon as it is
+		arrivals.put(session, liveFrom);
+		session.setRoom(this);
+		boolean added = members.add(session.getId());
+
+		// a message stored after this finds the bit when it is sent
+		liveFrom.compareAndSet(Long.MAX_VALUE, scrollback.written());
+		scrollback.recent(liveFrom.get(), recent);
+		return added;
+	}
+
+	boolean remove(Session session) {
+		return members.remove(session.getId());
+	}
+
+	boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	/**
+	 * sends up to a batch of queued messages to the members, only the
+	 * room's dispatcher calls this
+	 */
+	void deliver(ArrayList<Frame> batch) {
+		// cleared first, so a message added while sending schedules the room again
+		scheduled.set(false);
+
+		batch.clear();
+		Frame message;
+
+		while (batch.size() < BroadcastThread.BATCH_SIZE && (message = messages.poll()) != null) {
+			batch.add(message);
+		}
+
+		Metrics.broadcastQueued(-batch.size());
+
+		// only queues the message, a client that is not reading can't hold this up,
+		// and every client gets the same encoded bytes
+		for (Frame frame : batch) {
+			long sequence = (frame.getCommand() == Frame.PUBLIC_MESSAGE) ? scrollback.add(frame) : -1;
+
+			if (sequence >= 0 && !arrivals.isEmpty())
+				forgetArrivals(sequence);
+
+			send(frame, sequence);
+		}
+
+		// more than a batch was waiting
+		if (!messages.isEmpty() && scheduled.compareAndSet(false, true)) {
+			dispatcher.schedule(this);
+		}
+	}
+
+	/**
+	 * sending sequence on, no arrival that was settled before it can skip
+	 * anything any more
+	 */
+	private void forgetArrivals(long sequence) {
+		Iterator<Map.Entry<Session, AtomicLong>> entries = arrivals.entrySet().iterator();
+
+		while (entries.hasNext()) {
+			long liveFrom = entries.next().getValue().get();
+
+			if (liveFrom != Long.MAX_VALUE && liveFrom <= sequence)
+				entries.remove();
+		}
+	}
+
+	/**
+	 * sequence is the message's number in the scrollback, -1 if it is not kept there
+	 */
+	private void send(Frame frame, long sequence) {
+		int words = members.words();
+		Frame unversioned = frame.unversioned();
+
+		for (int index = 0; index < words; index++) {
+			for (long word = members.word(index); word != 0; word &= word - 1) {
+				Session session = member((index << 6) + Long.numberOfTrailingZeros(word));
+
+				if (session != null && (sequence < 0 || isLive(session, sequence))) {
+					session.send((unversioned == frame || session.isPresenceVersioned()) ? frame : unversioned);
+					Log.trace("sent", "frame", frame, "to", session.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * false if session is coming in and gets the message from the scrollback
+	 */
+	private boolean isLive(Session session, long sequence) {
+		if (arrivals.isEmpty()) {
+			return true;
+		}
+
+		AtomicLong liveFrom = arrivals.get(session);
+
+		if (liveFrom == null) {
+			return true;
+		}
+
+		// the first send to find the newcomer before it looked at the scrollback starts it here
+		liveFrom.compareAndSet(Long.MAX_VALUE, sequence);
+		return sequence >= liveFrom.get();
+	}
+
+	/**
+	 * the session with id, null if it left or the id has been handed to
+	 * someone who is not in this room
+	 */
+	private Session member(int id) {
+		Session session = Server2.sessions.get(id);
+
+		if (session == null || (!everyone && session.getRoom() != this)) {
+			return null;
+		}
+
+		return session;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Every room on the server. A room is made when someone joins it and
+ * dropped when the last member leaves, except the lobby. Rooms are
+ * spread over the dispatchers by name.
+ */
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+public class Rooms {
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	private final BroadcastThread[] dispatchers;
+	private final Room everyone;
+	private final int scrollback;
+
+	/**
+	 * scrollback is how many public messages each room keeps for newcomers
+	 */
+	public Rooms(int dispatcherCount, int scrollback) {
+		this.scrollback = scrollback;
+		dispatchers = new BroadcastThread[Math.max(1, dispatcherCount)];
+
+		for (int i = 0; i < dispatchers.length; i++)
+			dispatchers[i] = new BroadcastThread();
+
+		// joins and leaves still go to every user on the server, nobody is shown them later
+		everyone = new Room("", Server2.sessions.ids(), dispatchers[0], 0);
+		rooms.put(Room.LOBBY, newRoom(Room.LOBBY));
+	}
+
+	/**
+	 * starts a thread for every dispatcher
+	 */
+	public void start(Executor exec) {
+		for (BroadcastThread dispatcher : dispatchers)
+			exec.execute(dispatcher);
+	}
+
+	/**
+	 * every user on the server, whatever room they are in
+	 */
+	public Room everyone() {
+		return everyone;
+	}
+
+	/**
+	 * moves session out of its room and into name, making the room if it
+	 * is new. announce tells both rooms about the move. recent gets the
+	 * room's last public messages, none if session was in it already.
+	 */
+	public Room enter(final Session session, String name, boolean announce, final List<Frame> recent) {
+		Room old = session.getRoom();
+
+		if (old != null && old.getName().equals(name)) {
+			return old;
+		}
+
+		exit(session, announce);
+
+		// compute runs alone for the key, so an emptied room can't be dropped under a join
+		Room room = rooms.compute(name, (key, existing) -> {
+			Room joined = (existing != null) ? existing : newRoom(key);
+			// sets the session's room first, a room only sends to the sessions that say they are in it
+			joined.add(session, recent);
+			return joined;
+		});
+
+		if (announce) {
+			room.broadcast(Frame.enteredRoom(name, session.getName()));
+		}
+
+		return room;
+	}
+
+	/**
+	 * takes session out of its room, the room goes away once it is empty
+	 */
+	public void exit(final Session session, boolean announce) {
+		Room room = session.getRoom();
+
+		if (room == null) {
+			return;
+		}
+
+		session.setRoom(null);
+
+		rooms.computeIfPresent(room.getName(), (key, existing) -> {
+			existing.remove(session);
+			return (existing.isEmpty() && !key.equals(Room.LOBBY)) ? null : existing;
+		});
+
+		if (announce) {
+			room.broadcast(Frame.leftRoom(room.getName(), session.getName()));
+		}
+	}
+
+	/**
+	 * the room names, comma separated
+	 */
+	public String list() {
+		return String.join(",", rooms.keySet());
+	}
+
+	/**
+	 * true if name can be a room, it has to fit in one protocol field
+	 */
+	public static boolean isValidName(String name) {
+		return name.length() <= Room.MAX_NAME_LENGTH && Sessions.isValidName(name);
+	}
+
+	private Room newRoom(String name) {
+		return new Room(name, new IdSet(Server2.sessions.capacity()), dispatcherFor(name), scrollback);
+	}
+
+	private BroadcastThread dispatcherFor(String name) {
+		return dispatchers[Math.floorMod(name.hashCode(), dispatchers.length)];
+	}
+}
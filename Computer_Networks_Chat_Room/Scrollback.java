@@ -0,0 +1,95 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The last few public messages said in a room, so someone who just came
+ * in sees what the conversation was. The slots are made once and reused
+ * round and round, so it never holds more than its capacity however long
+ * the server runs.
+ *
+ * Every message gets a sequence number as it is added, its place in the
+ * count of messages ever added, which Room uses to tell what a newcomer
+ * was sent live from what it gets from here.
+ *
+ * Only the room's dispatcher adds, and a reader never locks or waits on
+ * it. The writer counts a message as started before it stores it and as
+ * written after, a reader copies the written slots and then checks how
+ * many the writer has started since, anything it may have overwritten
+ * is dropped from the front of the copy.
+ */
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public final class Scrollback {
+
+	private final AtomicReferenceArray<Frame> slots;
+	private final int capacity;
+	// messages ever added, the next one goes in slot written % capacity
+	private volatile long written = 0;
+	// one ahead of written while a slot is being stored
+	private volatile long started = 0;
+
+	public Scrollback(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		this.slots = new AtomicReferenceArray<Frame>(this.capacity);
+	}
+
+	/**
+	 * false if it keeps nothing
+	 */
+	boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * keeps message, pushing out the oldest once full, and returns its
+	 * sequence number, -1 if nothing is kept. Only one thread may add.
+	 */
+	long add(Frame message) {
+		if (capacity == 0) {
+			return -1;
+		}
+
+		long next = written;
+		// before the slot, so a reader that copied the new message sees that it may have
+		started = next + 1;
+		slots.set((int) (next % capacity), message);
+		// after the slot, so a reader that sees the count sees the message
+		written = next + 1;
+		return next;
+	}
+
+	/**
+	 * the sequence number the next message will get, every message before
+	 * it is stored already
+	 */
+	long written() {
+		return written;
+	}
+
+	/**
+	 * puts the messages held right now that came before sequence number
+	 * end in into, oldest first
+	 */
+	void recent(long end, List<Frame> into) {
+		end = Math.min(end, written);
+		long start = Math.max(0, end - capacity);
+
+		if (end <= start) {
+			return;
+		}
+
+		Frame[] copy = new Frame[(int) (end - start)];
+
+		for (long i = start; i < end; i++)
+			copy[(int) (i - start)] = slots.get((int) (i % capacity));
+
+		// the writer went round while we copied, those slots hold newer messages now
+		long overwritten = started - capacity;
+
+		for (long i = Math.max(start, overwritten); i < end; i++)
+			into.add(copy[(int) (i - start)]);
+	}
+}
@@ -2,47 +2,334 @@
  * Walker Sorlie and Aspen Hopkins
  * CMPT 352
  * April 2016
+ *
+ * Usage:
+ *	java Server2 [threads | virtual | nio [event loops]]
+ *
+ * threads (the default) services every client on its own thread from a
+ * cached pool, virtual runs the same code on virtual threads (Java 21+),
+ * and nio services all clients on a few selector threads.
+ *
+ * -Dchat.acceptors (default one per core) threads take new connections,
+ * each off a listening socket of its own where the OS lets them share
+ * the port (SO_REUSEPORT), so a storm of clients coming back at once
+ * does not queue behind one accept loop. They only hand the connection
+ * on, a thread or an event loop does the handshake. -Dchat.acceptBacklog
+ * (default 4096, the OS may cap it) is how many connections each socket
+ * lets wait to be accepted, past that the OS drops them and clients
+ * retry later.
+ *
+ * Every client has its own outbound queue, sized with
+ * -Dchat.outbound.capacity (default 1024 messages). When a client falls
+ * that far behind -Dchat.outbound.overflow decides what happens:
+ * drop-oldest (default), drop-client, or block, which waits up to
+ * -Dchat.outbound.blockMillis (default 50) before dropping the client.
+ *
+ * Everything queued for a client goes out in one write, up to
+ * -Dchat.flush.maxBytes (default 8192). -Dchat.flush.maxLatencyMillis
+ * (default 0) lets a client's first message wait that long for more to
+ * join it. -Dchat.flush.statsSeconds prints the frames per flush that
+ * often.
+ *
+ * Clients start in the lobby and can move to other rooms, a public
+ * message only goes to the sender's room. -Dchat.dispatchers (default
+ * one per core) sets how many threads the rooms are spread over.
+ *
+ * Each room keeps its last -Dchat.scrollback (default 50) public messages,
+ * a client is sent the lobby's right after it is accepted and a room's
+ * right after it joins it. 0 turns it off.
+ *
+ * -Dchat.journal.dir turns on the journal, every public and private
+ * message, join and leave is appended to memory mapped segments of
+ * -Dchat.journal.segmentBytes (default 64 MB) in that directory. What
+ * arrived in each -Dchat.journal.intervalMillis (default 5) is written
+ * and synced as one batch, -Dchat.journal.sync=false skips the sync.
+ * JournalReplay reads it back.
+ *
+ * Flood control: each client may send -Dchat.flood.publicRate (default
+ * 10) public messages a second, in bursts of up to -Dchat.flood.publicBurst
+ * (default 20), and -Dchat.flood.privateRate (default 5) whispers a second
+ * in bursts of -Dchat.flood.privateBurst (default 10). Anything over is
+ * answered with 18 instead of being sent on. A rate of 0 turns it off,
+ * which a load test sending faster than that from one client needs. A
+ * message with a line break in it, or a whisper with a name no user
+ * could have, is answered with 18 too.
+ *
+ * Idle clients: one that has sent nothing for -Dchat.idle.pingMillis
+ * (default 30000) is sent 19. A binary client, one that keeps presence
+ * versions or one that has answered a 19 before has to answer 20, it is
+ * dropped when -Dchat.idle.readMillis (default 90000) less pingMillis
+ * have passed since the 19 was written to it. A text client that never
+ * answers is not dropped for being quiet. Anyone who has taken none of
+ * what it was sent for -Dchat.idle.writeMillis (default 30000) is
+ * dropped. Everyone is told it left. The checks run every
+ * -Dchat.idle.tickMillis (default 1000), 0 turns any of them off. A
+ * client has readMillis to send its username.
+ *
+ * At most -Dchat.maxSessions (default 65536) clients can have a name at
+ * once, one over that is answered as if its name was taken.
+ *
+ * Who is online is sent as a snapshot and then the joins and leaves
+ * after it, each with a version, to clients that send a version in their
+ * 0 or a 22. The rest get the list in their 1 and joins and leaves
+ * without versions, the text protocol as it always was. The last
+ * -Dchat.presence.history (default 1024) changes are kept for clients
+ * catching up, see Presence.
+ *
+ * A private message for someone who is not online is kept and sent to
+ * them when they join, Mailboxes has the -Dchat.mailbox.* settings. The
+ * sender gets a 23 saying whether it was delivered, stored or not.
+ *
+ * Metrics are always registered over JMX as chat:type=Metrics.
+ * -Dchat.admin.port also serves them as plain text on that port, which
+ * only listens on localhost.
+ *
+ * Log has the -Dchat.log.* settings, by default it logs nothing per message.
+ *
+ * A binary client can ask for what it is sent to be deflated, Compressor
+ * has the -Dchat.compress.* settings.
  */
 
 import java.net.*;
 import java.io.*;
 import java.util.concurrent.*;
-import java.util.Vector;
+import java.lang.reflect.Method;
 
 public class Server2 {
 
         public static final int PORT = 1337;
-        private static final Executor exec = Executors.newCachedThreadPool();		
-        public static ConcurrentHashMap<String, DataOutputStream> userList = new ConcurrentHashMap<String, DataOutputStream>();		// key is the username, value is the DataOutputStream
-        public static Vector<String> broadcastThread = new Vector<String>();
+        private static Executor exec = Executors.newCachedThreadPool();
+        public static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+        public static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.parse(System.getProperty("chat.outbound.overflow", "drop-oldest"));
+        public static final long BLOCK_MILLIS = Long.getLong("chat.outbound.blockMillis", 50);
+        public static final int ACCEPTORS = Math.max(1, Integer.getInteger("chat.acceptors", Runtime.getRuntime().availableProcessors()));
+        public static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 4096);
+        public static final int FLUSH_MAX_BYTES = Integer.getInteger("chat.flush.maxBytes", 8192);
+        public static final long FLUSH_MAX_LATENCY_MILLIS = Long.getLong("chat.flush.maxLatencyMillis", 0);
+        public static final int PUBLIC_RATE = Integer.getInteger("chat.flood.publicRate", 10);
+        public static final int PUBLIC_BURST = Integer.getInteger("chat.flood.publicBurst", 20);
+        public static final int PRIVATE_RATE = Integer.getInteger("chat.flood.privateRate", 5);
+        public static final int PRIVATE_BURST = Integer.getInteger("chat.flood.privateBurst", 10);
+        public static final long PING_MILLIS = Long.getLong("chat.idle.pingMillis", 30000);
+        public static final long READ_IDLE_MILLIS = Long.getLong("chat.idle.readMillis", 90000);
+        public static final long WRITE_IDLE_MILLIS = Long.getLong("chat.idle.writeMillis", 30000);
+        private static final long FLUSH_STATS_SECONDS = Long.getLong("chat.flush.statsSeconds", 0);
+        public static final Sessions sessions = new Sessions(Integer.getInteger("chat.maxSessions", 65536));		// every client with a name, by name and by id
+        public static Journal journal = null;
+        public static final Reaper reaper = new Reaper(Long.getLong("chat.idle.tickMillis", 1000), PING_MILLIS, READ_IDLE_MILLIS, WRITE_IDLE_MILLIS);
+        public static Rooms rooms = new Rooms(Integer.getInteger("chat.dispatchers", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("chat.scrollback", 50));
+        public static final Mailboxes mailboxes = Mailboxes.fromProperties();
+        public static final Presence presence = new Presence(rooms.everyone(), Integer.getInteger("chat.presence.history", 1024));
+        private static final String WELCOME = "Welcome to the coolest server";
+        // the same for every client that keeps versions, who is here follows it
+        private static final Frame ACCEPTED = Frame.accepted("", WELCOME);
 
         public static void main(String[] args) throws IOException {
-            ServerSocket server = null;
+            String mode = (args.length > 0) ? args[0] : "threads";
 
-            try {
-                Runnable broadcastTask = new BroadcastThread();
-                exec.execute(broadcastTask);
+            rooms.start(exec);
+            exec.execute(reaper);
+            Metrics.start(Integer.getInteger("chat.admin.port", 0));
+
+            journal = Journal.open(System.getProperty("chat.journal.dir"), Integer.getInteger("chat.journal.segmentBytes", 64 * 1024 * 1024),
+                    !"false".equals(System.getProperty("chat.journal.sync")), Long.getLong("chat.journal.intervalMillis", 5));
+
+            if (journal != null) {
+                exec.execute(journal);
+            }
 
-                server = new ServerSocket(PORT);
+            if (FLUSH_STATS_SECONDS > 0) {
+                printFlushStats();
+            }
+
+            if (mode.equals("nio")) {
+                int eventLoops = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                new NioServer(PORT, eventLoops).run();
+                return;
+            }
+
+            if (mode.equals("virtual")) {
+                exec = newVirtualThreadExecutor();
+            }
+
+            final ServerSocket[] servers = listen(ACCEPTORS);
+            Log.info("listening", "port", PORT, "mode", mode);
+
+            // the acceptors share the one socket if there is only one
+            for (int i = 1; i < ACCEPTORS; i++) {
+                final ServerSocket server = servers[i % servers.length];
+
+                new Thread(new Runnable() {
+                    public void run() {
+                        accept(server);
+                    }
+                }, "acceptor-" + i).start();
+            }
 
-                while (true) {
+            accept(servers[0]);
+        }
+
+        /**
+         * count sockets listening on PORT. Where SO_REUSEPORT is supported
+         * each has its own accept queue and the kernel spreads new
+         * connections over them, elsewhere there is only the one.
+         */
+        private static ServerSocket[] listen(int count) throws IOException {
+            java.util.ArrayList<ServerSocket> servers = new java.util.ArrayList<ServerSocket>();
+
+            do {
+                ServerSocket server = new ServerSocket();
+
+                if (count > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                else
+                    count = 1;
+
+                server.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+                servers.add(server);
+            } while (servers.size() < count);
+
+            return servers.toArray(new ServerSocket[servers.size()]);
+        }
+
+        /**
+         * one acceptor, it only hands each connection to a thread of its
+         * own, which does the handshake, so a client that is slow to send
+         * its name holds up nobody else
+         */
+        private static void accept(ServerSocket server) {
+            while (true) {
+                try {
                     /** now listen for connections
                     * and service the connection in a separate thread
                     */
                     Socket socket = server.accept();
-                    
+
                     Runnable clientThread = new ChatThread(socket);
                     exec.execute(clientThread);
                 }
+                catch (IOException e) {
+                    // out of file descriptors, or the client gave up already, wait a little for the next one
+                    Log.error("accept_failed", "error", e);
+
+                    try {
+                        Thread.sleep(100);
+                    }
+                    catch (InterruptedException ignore) { }
+                }
             }
-            catch (IOException e) {
-                System.err.println(e);
+        }
+
+        /**
+         * runs a task on the same executor the clients run on
+         */
+        public static void execute(Runnable task) {
+            exec.execute(task);
+        }
+
+        /**
+         * puts a client that was just accepted in the lobby and returns
+         * what it is sent before anything else, the accepted reply and then
+         * the lobby's recent messages. Messages said in the lobby from here
+         * on are queued for it, so nothing falls between the two and nothing
+         * comes twice.
+         */
+        public static Frame[] accept(Session session, long presenceSeen) {
+            java.util.ArrayList<Frame> recent = new java.util.ArrayList<Frame>();
+            rooms.enter(session, Room.LOBBY, false, recent);
+            Frame accepted = ACCEPTED;
+            Frame[] changes = new Frame[0];
+
+            // a client that sent no version gets the list in the 1, as it always did
+            if (presenceSeen >= 0) {
+                session.setPresenceVersioned();
+                session.liveness().answersPings();
+                changes = presence.since(presenceSeen);
+            }
+            else
+                accepted = presence.accepted(session.getName(), WELCOME);
+
+            Frame[] reply = new Frame[1 + changes.length + recent.size()];
+
+            reply[0] = accepted;
+            System.arraycopy(changes, 0, reply, 1, changes.length);
+
+            for (int i = 0; i < recent.size(); i++)
+                reply[1 + changes.length + i] = recent.get(i);
+
+            return reply;
+        }
+
+        /**
+         * tells everyone a client that was just accepted is here
+         */
+        public static void joined(Session session) {
+            Metrics.joined();
+            Frame joined = presence.join(session);
+
+            if (joined != null)
+                record(joined, "");
+        }
+
+        /**
+         * takes a client out of the user list and its room and tells
+         * everyone it left, does nothing if it already left
+         */
+        public static void leave(Session session) {
+            if (sessions.remove(session)) {
+                Metrics.left();
+                rooms.exit(session, false);
+                // no room holds its id any more, a new client can have it
+                sessions.release(session);
+                // this is the message sent to all clients for a client who left
+                Frame left = presence.leave(session.getName());
+
+                if (left != null)
+                    record(left, "");
             }
+        }
+
+        /**
+         * puts a frame in the journal, if there is one, room is "" for the whole server
+         */
+        public static void record(Frame frame, String room) {
+            if (journal != null)
+                journal.append(frame, room);
+        }
 
-            finally {
-                if (server!= null)
-                    server.close();
+        /**
+         * prints the frame per flush counters every FLUSH_STATS_SECONDS
+         */
+        private static void printFlushStats() {
+            Thread printer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(FLUSH_STATS_SECONDS * 1000);
+                            Log.info("flush_stats", "summary", FlushStats.summary());
+                        }
+                    }
+                    catch (InterruptedException ignore) { }
+                }
+            }, "flush-stats");
+            printer.setDaemon(true);
+            printer.start();
+        }
+
+        /**
+         * Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21
+         * on, so look it up at runtime and keep the cached pool on older JVMs.
+         */
+        private static Executor newVirtualThreadExecutor() {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Log.info("executor", "threads", "virtual");
+                return (Executor) factory.invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                Log.warn("virtual_threads_unavailable", "needs", "Java 21", "using", "cached thread pool");
+                return exec;
             }
         }
 }
-
@@ -0,0 +1,72 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * A connected client as the rest of the server sees it. Messages are
+ * queued with send() and written by the session itself, so the thread
+ * that sends never waits on a slow client.
+ */
+
+public interface Session {
+
+	/**
+	 * the username the client picked in the 0 handshake
+	 */
+	String getName();
+
+	/**
+	 * the id Server2.sessions gave the session, its slot there
+	 */
+	int getId();
+
+	void setId(int id);
+
+	/**
+	 * begin writing queued messages to the client
+	 */
+	void start();
+
+	/**
+	 * queue a message for the client, the overflow policy decides what
+	 * happens when the queue is full
+	 */
+	void send(Frame message);
+
+	/**
+	 * write lastMessage (if not null) after anything already queued and
+	 * then close the connection
+	 */
+	void close(Frame lastMessage);
+
+	/**
+	 * closes the connection at once, writing nothing else, and the client
+	 * leaves. For a client that is gone or stuck.
+	 */
+	void drop();
+
+	/**
+	 * messages queued for the client and not written yet
+	 */
+	int backlog();
+
+	/**
+	 * the room the client is in, null before it joins one
+	 */
+	Room getRoom();
+
+	void setRoom(Room room);
+
+	/**
+	 * true once the client sent a presence version, in its 0 or a 22. Only
+	 * then is it sent 21 and the versions in 9 and 10.
+	 */
+	boolean isPresenceVersioned();
+
+	void setPresenceVersioned();
+
+	/**
+	 * when the client was last heard from, for the Reaper
+	 */
+	Liveness liveness();
+}
@@ -0,0 +1,156 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Every client that has a name. A name is claimed with one putIfAbsent,
+ * so two clients asking for the same one can't both get it, and each
+ * session is given the lowest free id, which is its slot in one array.
+ * Rooms keep their members as ids in an IdSet and find the sessions
+ * here, so sending to a room is an index into the array per member and
+ * looks nothing up by name.
+ *
+ * An id is only handed out again after its session has left every room
+ * (see Server2.leave), and a room checks that the session in a slot is
+ * really in it before sending, so a room that still holds an old id
+ * can't send to whoever has it now.
+ *
+ * A name goes into text protocol lines and comma separated lists, so one
+ * that is empty or holds a space, a comma or a control character is
+ * turned away like a taken one.
+ *
+ *	-Dchat.maxSessions	most clients at once (default 65536)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public final class Sessions {
+
+	private final ConcurrentHashMap<String, Session> names = new ConcurrentHashMap<String, Session>();
+	private final AtomicReferenceArray<Session> slots;
+	private final IdSet ids;
+
+	public Sessions(int capacity) {
+		slots = new AtomicReferenceArray<Session>(Math.max(1, capacity));
+		ids = new IdSet(slots.length());
+	}
+
+	/**
+	 * claims session's name and gives it an id, false if the name is
+	 * taken or every id is in use
+	 */
+	public boolean register(Session session) {
+		if (!isValidName(session.getName())) {
+			Log.info("invalid_name", "user", session.getName());
+			return false;
+		}
+
+		int id = ids.claim();
+
+		if (id < 0) {
+			Log.warn("server_full", "user", session.getName(), "capacity", slots.length());
+			return false;
+		}
+
+		// set before the name is claimed, so whoever finds the session by name sees its id
+		session.setId(id);
+
+		if (names.putIfAbsent(session.getName(), session) != null) {
+			ids.remove(id);
+			return false;
+		}
+
+		slots.set(id, session);
+		return true;
+	}
+
+	/**
+	 * gives up session's name and slot, false if it was not registered.
+	 * Its id stays taken until release(), so it can be taken out of its
+	 * room first.
+	 */
+	public boolean remove(Session session) {
+		if (!names.remove(session.getName(), session)) {
+			return false;
+		}
+
+		slots.compareAndSet(session.getId(), session, null);
+		return true;
+	}
+
+	/**
+	 * lets the id of a removed session go to a new client
+	 */
+	public void release(Session session) {
+		ids.remove(session.getId());
+	}
+
+	/**
+	 * the session with this name, null if there is none
+	 */
+	public Session get(String name) {
+		return names.get(name);
+	}
+
+	/**
+	 * the session with this id, null if there is none
+	 */
+	public Session get(int id) {
+		return slots.get(id);
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * most sessions at once, every id is below this
+	 */
+	public int capacity() {
+		return slots.length();
+	}
+
+	/**
+	 * the names, comma separated
+	 */
+	public String names() {
+		return String.join(",", names.keySet());
+	}
+
+	/**
+	 * a copy of every session, for reports
+	 */
+	public List<Session> values() {
+		return new ArrayList<Session>(names.values());
+	}
+
+	/**
+	 * true if name can be a user's, it has to be one word that fits in a
+	 * list and can't end a line
+	 */
+	public static boolean isValidName(String name) {
+		if (name.isEmpty()) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+
+			if (c == ' ' || c == ',' || Character.isISOControl(c)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * every id in use, the members of the room for the whole server
+	 */
+	IdSet ids() {
+		return ids;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Flood control for one kind of message from one client. The bucket
+ * holds up to burst tokens and gets rate more every second, a message
+ * takes one and is turned away when there are none.
+ *
+ * Rather than counting tokens it keeps the time at which the bucket will
+ * be full again: each message moves it 1 / rate seconds later, and a
+ * message is allowed as long as that is no more than burst - 1 tokens'
+ * worth ahead of now. It is one long and a compare, and only the thread
+ * reading the client touches it, so there is nothing to lock.
+ */
+
+public final class TokenBucket {
+
+	// nanoseconds one token takes to come back, 0 means no limit
+	private final long interval;
+	// how far ahead of now the full time may run
+	private final long tolerance;
+	private long fullAt;
+
+	/**
+	 * rate tokens a second, up to burst at once, rate 0 turns it off
+	 */
+	public TokenBucket(int rate, int burst) {
+		this.interval = (rate > 0) ? 1000000000L / rate : 0;
+		this.tolerance = (long) (Math.max(1, burst) - 1) * interval;
+		this.fullAt = System.nanoTime();
+	}
+
+	/**
+	 * takes a token at now (System.nanoTime()), false if there was none
+	 */
+	public boolean take(long now) {
+		if (interval == 0) {
+			return true;
+		}
+
+		// a bucket that has been idle is full, it never holds more than burst
+		long from = (fullAt - now < 0) ? now : fullAt;
+
+		if (from - now > tolerance) {
+			return false;
+		}
+
+		fullAt = from + interval;
+		return true;
+	}
+}
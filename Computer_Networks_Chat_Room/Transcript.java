@@ -0,0 +1,259 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What ChatScreen shows. Lines can be added from any thread and are only
+ * queued, a Swing timer takes everything queued so far and appends it to
+ * the text area in one go, at most fps times a second, so a busy room
+ * costs one document update per frame instead of one per message. The
+ * area keeps the newest maxLines lines, older ones are cut off the top
+ * and, if a spill file was given, handed to a writer thread that appends
+ * them to it, so the event thread never waits on the disk.
+ *
+ * Neither queue grows without end. If more than maxQueued lines are
+ * waiting for the timer, the oldest are dropped and a "lines skipped"
+ * line takes their place, and if the writer falls SPILL_QUEUE chunks
+ * behind, the oldest chunk it has not written is left out of the file
+ * and marked the same way there.
+ *
+ *	-Dchat.screen.lines	lines kept on screen (default 1000)
+ *	-Dchat.screen.fps	most updates a second (default 30)
+ *	-Dchat.screen.queued	most lines waiting for the screen (default 10000)
+ *	-Dchat.screen.spill	append lines cut off the screen to this file
+ */
+
+import java.io.*;
+import java.awt.event.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+
+public class Transcript {
+
+	// most chunks of cut off text waiting for the spill writer
+	private static final int SPILL_QUEUE = 64;
+
+	private final int maxLines;
+	private final int fps;
+	private final int maxQueued;
+	private final Queue<String> incoming = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger queued = new AtomicInteger(0);
+	// lines dropped from incoming since the timer last looked
+	private final AtomicInteger skipped = new AtomicInteger(0);
+
+	// null when there is no spill file or writing it failed
+	private volatile Writer spill = null;
+	private final BlockingQueue<String> spillQueue = new ArrayBlockingQueue<String>(SPILL_QUEUE);
+	private final AtomicInteger spillSkipped = new AtomicInteger(0);
+
+	// only the event thread touches these
+	private JTextArea area;
+	private final ArrayList<String> lines = new ArrayList<String>();
+	private final StringBuilder batch = new StringBuilder();
+
+	public Transcript(int maxLines, int fps, int maxQueued, String spillFile) {
+		this.maxLines = Math.max(1, maxLines);
+		this.fps = Math.max(1, fps);
+		this.maxQueued = Math.max(1, maxQueued);
+
+		if (spillFile != null) {
+			try {
+				spill = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8));
+			}
+			catch (IOException e) {
+				System.err.println("<can't open " + spillFile + ", old lines are dropped: " + e + ">");
+			}
+		}
+
+		if (spill != null) {
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					writeSpill();
+				}
+			}, "transcript-spill");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * the settings from the -Dchat.screen properties
+	 */
+	public static Transcript fromProperties() {
+		return new Transcript(Integer.getInteger("chat.screen.lines", 1000), Integer.getInteger("chat.screen.fps", 30),
+				Integer.getInteger("chat.screen.queued", 10000), System.getProperty("chat.screen.spill"));
+	}
+
+	/**
+	 * queues one line, without its line end, from any thread. Lines added
+	 * before attach() are shown once the area is there. Past maxQueued the
+	 * oldest waiting line makes way.
+	 */
+	public void add(String line) {
+		incoming.add(line);
+
+		if (queued.incrementAndGet() > maxQueued && incoming.poll() != null) {
+			queued.decrementAndGet();
+			skipped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * starts showing lines in area, on the event thread
+	 */
+	public void attach(JTextArea area) {
+		this.area = area;
+
+		Timer timer = new Timer(1000 / fps, new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				update();
+			}
+		});
+		timer.setCoalesce(true);
+		timer.start();
+	}
+
+	/**
+	 * everything queued since the last frame, in one append
+	 */
+	private void update() {
+		// whatever was dropped is older than anything still queued
+		int dropped = skipped.getAndSet(0);
+
+		if (dropped > 0)
+			lines.add(skippedLine(dropped));
+
+		String line;
+
+		while ((line = incoming.poll()) != null) {
+			queued.decrementAndGet();
+			lines.add(line);
+		}
+
+		if (lines.isEmpty()) {
+			return;
+		}
+
+		// lines that would be cut again straight away never reach the area
+		int first = Math.max(0, lines.size() - maxLines);
+
+		batch.setLength(0);
+
+		for (int i = first; i < lines.size(); i++)
+			batch.append(lines.get(i)).append('\n');
+
+		area.append(batch.toString());
+		// what was on screen before is older, so it goes to the spill first
+		trim();
+
+		if (first > 0 && spill != null) {
+			batch.setLength(0);
+
+			for (int i = 0; i < first; i++)
+				batch.append(lines.get(i)).append('\n');
+
+			spill(batch.toString());
+		}
+
+		lines.clear();
+	}
+
+	/**
+	 * cuts the oldest lines until maxLines are left
+	 */
+	private void trim() {
+		// the text ends with a line end, so the last line is always empty
+		int excess = area.getLineCount() - 1 - maxLines;
+
+		if (excess <= 0) {
+			return;
+		}
+
+		try {
+			int end = area.getLineStartOffset(excess);
+
+			if (spill != null)
+				spill(area.getText(0, end));
+
+			area.replaceRange("", 0, end);
+		}
+		catch (BadLocationException e) {
+			// can't happen, excess is less than the line count
+		}
+	}
+
+	private static String skippedLine(int count) {
+		return "<" + count + " lines skipped>";
+	}
+
+	/**
+	 * hands text cut off the screen to the writer, on the event thread
+	 */
+	private void spill(String text) {
+		if (spill == null) {
+			return;
+		}
+
+		// the writer is SPILL_QUEUE chunks behind, the oldest makes way
+		while (!spillQueue.offer(text)) {
+			String oldest = spillQueue.poll();
+
+			if (oldest == null)
+				continue;
+
+			int count = 0;
+
+			for (int i = 0; i < oldest.length(); i++)
+				if (oldest.charAt(i) == '\n')
+					count++;
+
+			spillSkipped.addAndGet(count);
+		}
+	}
+
+	/**
+	 * the writer thread, appends every chunk queued so far and then
+	 * flushes once
+	 */
+	private void writeSpill() {
+		Writer out = spill;
+
+		try {
+			while (true) {
+				String text = spillQueue.take();
+
+				do {
+					int dropped = spillSkipped.getAndSet(0);
+
+					if (dropped > 0)
+						out.write(skippedLine(dropped) + "\n");
+
+					out.write(text);
+				} while ((text = spillQueue.poll()) != null);
+
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("<spill failed, old lines are dropped from now on: " + e + ">");
+		}
+		catch (InterruptedException e) {
+			// only a daemon, nobody interrupts it
+		}
+
+		spill = null;
+		spillQueue.clear();
+
+		try {
+			out.close();
+		}
+		catch (IOException ignore) { }
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The two ways a client can talk to the server. Which one a connection
+ * uses is decided by the first byte it sends, see BinaryProtocol.
+ */
+
+public enum WireFormat {
+
+	// the original protocol, "5 alice 2016:04:20:12:00:00 hi\r\n"
+	TEXT,
+
+	// length prefixed frames with length prefixed UTF-8 fields
+	BINARY
+}
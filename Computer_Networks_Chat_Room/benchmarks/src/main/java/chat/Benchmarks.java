@@ -0,0 +1,28 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The benchmarks jar's main. Every benchmark reports throughput and the
+ * average time per operation, and this adds -prof gc unless another
+ * profiler was asked for, so the allocation rate and bytes per operation
+ * are always in the results. Everything else goes to JMH as it is.
+ */
+
+package chat;
+
+import java.util.Arrays;
+
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		if (!Arrays.asList(args).contains("-prof")) {
+			String[] withGc = Arrays.copyOf(args, args.length + 2);
+			withGc[args.length] = "-prof";
+			withGc[args.length + 1] = "gc";
+			args = withGc;
+		}
+
+		org.openjdk.jmh.Main.main(args);
+	}
+}
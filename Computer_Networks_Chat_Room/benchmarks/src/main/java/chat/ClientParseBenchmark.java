@@ -0,0 +1,77 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The client side of a conversation, ChatScreen's ReaderThread turning
+ * public (5) and private (6) messages from the server back into frames.
+ * text reads a line and parses it, binary reads a length prefixed frame
+ * into a reused Command.
+ */
+
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientParseBenchmark {
+
+	// bytes in each message body
+	@Param({ "16", "256", "4096" })
+	public int messageSize;
+
+	private static final String TIMESTAMP = "2016:04:20:12:00:00";
+
+	private BufferedReader serverReader;
+	private DataInputStream binaryReader;
+	private final Command command = new Command();
+
+	@Setup
+	public void setup() {
+		StringBuilder body = new StringBuilder();
+		while (body.length() < messageSize)
+			body.append("hello ");
+		body.setLength(messageSize);
+
+		Frame[] frames = {
+			Frame.publicMessage("alice", TIMESTAMP, body.toString()),
+			Frame.privateMessage("alice", "bob", TIMESTAMP, body.toString())
+		};
+
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+		for (Frame frame : frames) {
+			text.write(frame.toString().getBytes(StandardCharsets.ISO_8859_1), 0, frame.length(WireFormat.TEXT));
+
+			ByteBuffer encoded = frame.buffer(WireFormat.BINARY);
+			byte[] bytes = new byte[encoded.remaining()];
+			encoded.get(bytes);
+			binary.write(bytes, 0, bytes.length);
+		}
+
+		serverReader = new BufferedReader(new InputStreamReader(new CommandDecoderBenchmark.Replay(text.toByteArray())));
+		binaryReader = new DataInputStream(new BufferedInputStream(new CommandDecoderBenchmark.Replay(binary.toByteArray())));
+	}
+
+	@Benchmark
+	public Frame text() throws IOException {
+		return Frame.parse(serverReader.readLine());
+	}
+
+	@Benchmark
+	public Frame binary() throws IOException {
+		BinaryProtocol.read(binaryReader, command);
+		return Frame.from(command);
+	}
+}
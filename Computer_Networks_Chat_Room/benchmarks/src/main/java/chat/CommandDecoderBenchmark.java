@@ -0,0 +1,146 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The server read path, a client sending public (3) and private (4)
+ * messages one after the other. readLine is the old path, a String per
+ * line and then substrings for every field, the others go through
+ * CommandDecoder. Run with -prof gc for the bytes allocated per message.
+ */
+
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDecoderBenchmark {
+
+	// bytes in each message body
+	@Param({ "16", "256", "4096" })
+	public int messageSize;
+
+	private static final String TIMESTAMP = "2016:04:20:12:00:00";
+
+	private byte[] lines;
+	private CommandDecoder decoder;
+	private Command command;
+	private ByteBuffer buffer;
+	private BufferedReader reader;
+
+	@Setup
+	public void setup() {
+		StringBuilder body = new StringBuilder();
+		while (body.length() < messageSize)
+			body.append("hello ");
+		body.setLength(messageSize);
+
+		String text = "3" + body + "\r\n" + "4 alice bob " + body + "\r\n";
+		lines = text.getBytes(StandardCharsets.ISO_8859_1);
+
+		decoder = new CommandDecoder(new Replay(lines));
+		command = new Command();
+		buffer = ByteBuffer.wrap(lines);
+		reader = new BufferedReader(new InputStreamReader(new Replay(lines)));
+	}
+
+	/**
+	 * the threads mode path, a blocking stream into the decoder's buffer
+	 */
+	@Benchmark
+	public void decoderStream(Blackhole bh) throws IOException {
+		decoder.read(command);
+		bh.consume(command.getCommand());
+		bh.consume(command.fieldLength(Command.BODY));
+	}
+
+	/**
+	 * the nio mode path, lines parsed where they sit in the read buffer
+	 */
+	@Benchmark
+	public void decoderBuffer(Blackhole bh) {
+		if (!buffer.hasRemaining())
+			buffer.rewind();
+
+		CommandDecoder.decode(buffer, command);
+		bh.consume(command.getCommand());
+		bh.consume(command.fieldLength(Command.BODY));
+	}
+
+	/**
+	 * the decoder and the frame that goes back out, the only allocation
+	 * left per message
+	 */
+	@Benchmark
+	public Frame decoderToFrame() throws IOException {
+		decoder.read(command);
+
+		if (command.getCommand() == Frame.PUBLIC)
+			return Frame.publicMessage("alice", TIMESTAMP, command.field(Command.BODY));
+
+		return Frame.privateMessage(command.field(Command.USERNAME), command.field(Command.TARGET), TIMESTAMP, command.field(Command.BODY));
+	}
+
+	/**
+	 * what Handler did before, readLine and then the substrings for every
+	 * field (without the printlns, which would swamp everything else)
+	 */
+	@Benchmark
+	public void readLine(Blackhole bh) throws IOException {
+		String clientInput = reader.readLine();
+		String command = clientInput.substring(0, 1);
+
+		if (command.equals("3")) {
+			bh.consume(clientInput.substring(1));
+		}
+
+		else if (command.equals("4")) {
+			String withoutCommandNumber = clientInput.substring(clientInput.indexOf(" ") + 1);
+			String fromUsername = withoutCommandNumber.substring(0, withoutCommandNumber.indexOf(" "));
+			String toUsername = withoutCommandNumber.substring((withoutCommandNumber.indexOf(" ") + 1), withoutCommandNumber.indexOf(" ", (withoutCommandNumber.indexOf(" ") + 1)));
+			String holder = withoutCommandNumber.substring(withoutCommandNumber.indexOf(" ") + 1);
+			String message = holder.substring(holder.indexOf(" ") + 1);
+
+			bh.consume(fromUsername);
+			bh.consume(toUsername);
+			bh.consume(message);
+		}
+	}
+
+	/**
+	 * a client that sends the same bytes over and over, without allocating
+	 */
+	static class Replay extends InputStream {
+
+		private final byte[] data;
+		private int position = 0;
+
+		Replay(byte[] data) {
+			this.data = data;
+		}
+
+		public int read() {
+			int b = data[position] & 0xff;
+			position = (position + 1) % data.length;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int count = Math.min(len, data.length - position);
+			System.arraycopy(data, position, b, off, count);
+			position = (position + count) % data.length;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What deflating a client's batches costs and saves. compress is one
+ * flush's worth of public messages through one client's Compressor, the
+ * way a session does it, so the time per op divided by batch is the CPU
+ * per message. The bytes counters give what went in and came out; a
+ * batch under -Dchat.compress.minBytes is not compressed and counts the
+ * same both ways.
+ *
+ * The messages are made of common words in a random order, from a few
+ * dozen users, with the stamp moving every few messages, so they repeat
+ * about as much as a busy room does and no more.
+ */
+
+package chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	// messages in one flush
+	@Param({ "1", "8", "32" })
+	public int batch;
+
+	// bytes in each message body
+	@Param({ "32", "128", "512" })
+	public int messageSize;
+
+	private static final String[] WORDS = {
+		"the", "and", "you", "that", "was", "for", "are", "with", "his", "they", "this", "have", "from",
+		"one", "had", "word", "but", "not", "what", "all", "were", "when", "your", "can", "said", "there",
+		"use", "each", "which", "she", "how", "their", "will", "other", "about", "out", "many", "then",
+		"them", "these", "some", "her", "would", "make", "like", "him", "into", "time", "has", "look",
+		"lol", "ok", "yeah", "anyone", "here", "today", "meeting", "tomorrow", "?", "!", "thanks", "server"
+	};
+
+	private Frame[] frames;
+	private int next = 0;
+	private Compressor compressor;
+	private final ArrayList<Frame> list = new ArrayList<Frame>();
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Bytes {
+
+		public long bytesIn;
+		public long bytesOut;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytesIn = 0;
+			bytesOut = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Random random = new Random(352);
+		frames = new Frame[4096];
+
+		for (int i = 0; i < frames.length; i++) {
+			StringBuilder body = new StringBuilder();
+
+			while (body.length() < messageSize)
+				body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+
+			body.setLength(messageSize);
+			String stamp = GmtClock.format(1461153600L + i / 8);
+			frames[i] = Frame.publicMessage("user" + random.nextInt(40), stamp, body.toString());
+		}
+
+		compressor = new Compressor();
+	}
+
+	@TearDown
+	public void tearDown() {
+		compressor.end();
+	}
+
+	@Benchmark
+	public byte[] compress(Bytes bytes) throws IOException {
+		list.clear();
+		long length = 0;
+
+		for (int i = 0; i < batch; i++) {
+			Frame frame = frames[next];
+			next = (next + 1) & (frames.length - 1);
+			list.add(frame);
+			length += frame.length(WireFormat.BINARY);
+		}
+
+		byte[] block = compressor.compress(list, length);
+		bytes.bytesIn += length;
+		bytes.bytesOut += (block != null) ? block.length : length;
+		return block;
+	}
+}
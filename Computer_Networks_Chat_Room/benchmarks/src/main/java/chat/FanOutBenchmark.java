@@ -0,0 +1,181 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * A message going out to a room of users. fanOut is one pass of the
+ * BroadcastThread loop, draining the room and queueing the frame for
+ * every member. handlerPublic and handlerPrivate start further back, at
+ * the bytes a client sent, and go through Handler's parsing, the stamp
+ * and the new frame before that. The members are in memory sinks that
+ * only count the bytes they would have written, so what is measured is
+ * the server's side and not the sockets.
+ */
+
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// one client sends every message here, flood control would turn nearly all of them away
+@Fork(value = 1, jvmArgsAppend = { "-Dchat.flood.publicRate=0", "-Dchat.flood.privateRate=0" })
+public class FanOutBenchmark {
+
+	// members of the room
+	@Param({ "1", "100", "1000" })
+	public int users;
+
+	// bytes in each message body
+	@Param({ "16", "256", "4096" })
+	public int messageSize;
+
+	private static final String TIMESTAMP = "2016:04:20:12:00:00";
+
+	private Sink[] sinks;
+	private BroadcastThread dispatcher;
+	private Room room;
+	private Frame frame;
+	private Handler handler;
+	private Command command;
+	private ByteBuffer publicLine;
+	private ByteBuffer privateLine;
+	private final ArrayList<Room> rooms = new ArrayList<Room>();
+	private final ArrayList<Frame> batch = new ArrayList<Frame>();
+
+	@Setup
+	public void setup() {
+		StringBuilder body = new StringBuilder();
+		while (body.length() < messageSize)
+			body.append("hello ");
+		body.setLength(messageSize);
+
+		dispatcher = new BroadcastThread();
+		room = new Room("bench", new IdSet(Server2.sessions.capacity()), dispatcher, 0);
+		sinks = new Sink[users];
+
+		for (int i = 0; i < users; i++) {
+			sinks[i] = new Sink("user" + i);
+			// the room finds its members here by id, whispers by name
+			Server2.sessions.register(sinks[i]);
+			sinks[i].setRoom(room);
+			room.add(sinks[i]);
+		}
+
+		frame = Frame.publicMessage("user0", TIMESTAMP, body.toString());
+		handler = new Handler();
+		command = new Command();
+		publicLine = ByteBuffer.wrap(("3" + body + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		privateLine = ByteBuffer.wrap(("4 user0 user" + (users - 1) + " " + body + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Sink sink : sinks) {
+			Server2.sessions.remove(sink);
+			Server2.sessions.release(sink);
+		}
+	}
+
+	/**
+	 * one message drained from the room and queued for every member
+	 */
+	@Benchmark
+	public long fanOut() {
+		room.broadcast(frame);
+		dispatcher.deliverReady(rooms, batch);
+		return sinks[0].bytes;
+	}
+
+	/**
+	 * a 3 line parsed by the server, stamped and sent to the whole room
+	 */
+	@Benchmark
+	public long handlerPublic() {
+		publicLine.rewind();
+		CommandDecoder.decode(publicLine, command);
+		handler.dispatch(sinks[0], command);
+		dispatcher.deliverReady(rooms, batch);
+		return sinks[0].bytes;
+	}
+
+	/**
+	 * a 4 line parsed by the server, stamped and sent to one user
+	 */
+	@Benchmark
+	public long handlerPrivate() {
+		privateLine.rewind();
+		CommandDecoder.decode(privateLine, command);
+		handler.dispatch(sinks[0], command);
+		return sinks[users - 1].bytes;
+	}
+
+	/**
+	 * a member that only counts what it is sent
+	 */
+	static final class Sink implements Session {
+
+		private final String name;
+		private volatile Room room;
+		private int id = -1;
+		private final Liveness liveness = new Liveness();
+		long bytes = 0;
+
+		Sink(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public void setId(int id) {
+			this.id = id;
+		}
+
+		public void start() { }
+
+		public void send(Frame message) {
+			bytes += message.length(WireFormat.TEXT);
+		}
+
+		public void close(Frame lastMessage) { }
+
+		public void drop() { }
+
+		public int backlog() {
+			return 0;
+		}
+
+		public Room getRoom() {
+			return room;
+		}
+
+		public void setRoom(Room room) {
+			this.room = room;
+		}
+
+		public boolean isPresenceVersioned() {
+			return true;
+		}
+
+		public void setPresenceVersioned() {
+		}
+
+		public Liveness liveness() {
+			return liveness;
+		}
+	}
+}
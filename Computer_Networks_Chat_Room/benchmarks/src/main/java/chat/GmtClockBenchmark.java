@@ -0,0 +1,55 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * Stamping a message. simpleDateFormat is what getDatetimeGMT used to do
+ * for every message, gmtClock is the shared stamp for the current second
+ * and getDatetimeGMT is the same clock through Handler.
+ */
+
+package chat;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GmtClockBenchmark {
+
+	@Benchmark
+	public String simpleDateFormat() {
+		DateFormat dateFormat = new SimpleDateFormat("yyyy:MM:dd:HH:mm:ss");
+		Date date = new Date();
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return dateFormat.format(date);
+	}
+
+	@Benchmark
+	public String gmtClock() {
+		return GmtClock.now();
+	}
+
+	@Benchmark
+	public String getDatetimeGMT() {
+		return Handler.getDatetimeGMT();
+	}
+
+	/**
+	 * every thread stamping at once, the clock must not serialize them
+	 */
+	@Benchmark
+	@Threads(4)
+	public String gmtClockContended() {
+		return GmtClock.now();
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * What flood control adds to every public message and whisper. allowed
+ * is a client well under its limit, rejected one that is flooding, and
+ * unlimited a bucket with the limit turned off. Each includes the
+ * System.nanoTime() Handler reads for it.
+ */
+
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBucketBenchmark {
+
+	// so fast it never runs out, so slow it never has a token
+	private final TokenBucket open = new TokenBucket(1000000000, 1);
+	private final TokenBucket flooded = new TokenBucket(1, 1);
+	private final TokenBucket off = new TokenBucket(0, 0);
+
+	@Setup
+	public void setup() {
+		flooded.take(System.nanoTime());
+	}
+
+	@Benchmark
+	public boolean allowed() {
+		return open.take(System.nanoTime());
+	}
+
+	@Benchmark
+	public boolean rejected() {
+		return flooded.take(System.nanoTime());
+	}
+
+	@Benchmark
+	public boolean unlimited() {
+		return off.take(System.nanoTime());
+	}
+}
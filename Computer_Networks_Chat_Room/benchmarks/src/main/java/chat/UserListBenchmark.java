@@ -0,0 +1,125 @@
+/**
+ * Walker Sorlie and Aspen Hopkins
+ * CMPT 352
+ * April 2016
+ *
+ * The user list a client gets when it is accepted. snapshot is how
+ * Server2.accept gets it now, the cached 21 from Presence that is only
+ * built again after enough joins and leaves. accepted is what it did
+ * before, a new 1 with every name built and encoded for each client.
+ * perName is what it did before that, a writeBytes for every name and
+ * every comma, and returns how many writes that was, each one a socket
+ * write on a real connection.
+ */
+
+package chat;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserListBenchmark {
+
+	// users on the server
+	@Param({ "10", "100", "1000" })
+	public int users;
+
+	private final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+	private final CountingStream socket = new CountingStream();
+	private final DataOutputStream socketWriter = new DataOutputStream(socket);
+
+	private FanOutBenchmark.Sink[] sinks;
+	private Presence presence;
+
+	@Setup
+	public void setup() {
+		sinks = new FanOutBenchmark.Sink[users];
+		presence = new Presence(Server2.rooms.everyone(), 1024);
+
+		for (int i = 0; i < users; i++) {
+			sinks[i] = new FanOutBenchmark.Sink("user" + i);
+			Server2.sessions.register(sinks[i]);
+			presence.join(sinks[i]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (FanOutBenchmark.Sink sink : sinks) {
+			Server2.sessions.remove(sink);
+			Server2.sessions.release(sink);
+		}
+	}
+
+	@Benchmark
+	public int snapshot() throws IOException {
+		reply.reset();
+
+		for (Frame frame : presence.since(-1))
+			frame.writeTo(reply, WireFormat.TEXT);
+		return reply.size();
+	}
+
+	@Benchmark
+	public int snapshotBinary() throws IOException {
+		reply.reset();
+
+		for (Frame frame : presence.since(-1))
+			frame.writeTo(reply, WireFormat.BINARY);
+		return reply.size();
+	}
+
+	@Benchmark
+	public int accepted() throws IOException {
+		reply.reset();
+		Frame.accepted(Server2.sessions.names(), "Welcome to the coolest server").writeTo(reply, WireFormat.TEXT);
+		return reply.size();
+	}
+
+	@Benchmark
+	public int acceptedBinary() throws IOException {
+		reply.reset();
+		Frame.accepted(Server2.sessions.names(), "Welcome to the coolest server").writeTo(reply, WireFormat.BINARY);
+		return reply.size();
+	}
+
+	@Benchmark
+	public long perName() throws IOException {
+		socket.writes = 0;
+		socketWriter.writeBytes("1" + " ");
+
+		int left = sinks.length;
+
+		for (Session session : sinks) {
+			socketWriter.writeBytes(session.getName());
+			if (--left > 0)
+				socketWriter.writeBytes(",");
+		}
+
+		socketWriter.writeBytes(" " + "Welcome to the coolest server\r\n");
+		return socket.writes;
+	}
+
+	/**
+	 * stands in for the socket, counts the writes it is handed
+	 */
+	static final class CountingStream extends OutputStream {
+
+		long writes = 0;
+
+		public void write(int b) {
+			writes++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			writes++;
+		}
+	}
+}